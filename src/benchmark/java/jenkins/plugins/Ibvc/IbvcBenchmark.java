@@ -0,0 +1,120 @@
+package jenkins.plugins.Ibvc;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import hudson.EnvVars;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Baseline for the plugin's per-build hot paths. Run with <code>mvn -Pbenchmark verify</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IbvcBenchmark {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int CHUNK = 8192;
+
+	/**
+	 * Variables in the build environment
+	 */
+	@Param({"100", "10000"})
+	public int envSize;
+
+	/**
+	 * IBVC parameters, also set as IBVC_PARAM_name variables
+	 */
+	@Param({"20"})
+	public int parameterCount;
+
+	/**
+	 * Lines of IBVC output before the best-match line
+	 */
+	@Param({"100000"})
+	public int logLines;
+
+	private EnvVars vars_;
+	private IbvcCheckout checkout_;
+	private IbvcSCMPlugin scm_;
+	private IbvcBestMatchAction bestMatch_;
+	private byte[] log_;
+
+	@Setup
+	public void setUp(){
+		vars_ = new EnvVars();
+		vars_.put("WORKSPACE", "/var/lib/jenkins/workspace/ibvc-benchmark");
+		vars_.put("SFVC_REV", "0123456789abcdef");
+		for(int i = 0; i < envSize; ++i){
+			vars_.put("VAR_" + i, "value-" + i + "-${WORKSPACE}");
+		}
+
+		List<IbvcParameter> parameters = new ArrayList<IbvcParameter>();
+		for(int i = 0; i < parameterCount; ++i){
+			parameters.add(new IbvcParameter("name" + i, "${VAR_" + i + "}"));
+			vars_.put("IBVC_PARAM_name" + i, "${VAR_" + i + "}");
+		}
+
+		checkout_ = new IbvcCheckout("${WORKSPACE}/ibvc.config", "${SFVC_REV}", true, "--verbose", parameters);
+		scm_ = new IbvcSCMPlugin("ibvc.config", "${SFVC_REV}", true, "--verbose", parameters, null);
+		bestMatch_ = new IbvcBestMatchAction("1234", "0123456789abcdef");
+
+		StringBuilder log = new StringBuilder();
+		for(int i = 0; i < logLines; ++i){
+			log.append(String.format("Transferring src/module%d/file%d.c%n", i % 100, i));
+		}
+		log.append("Checking out IBVC revision 1234 and SFVC revision 0123456789abcdef").append(System.getProperty("line.separator"));
+		log_ = log.toString().getBytes(UTF8);
+	}
+
+	@Benchmark
+	public List<String> commandLine(){
+		return checkout_.args("/opt/ibvc/IBVC", "/opt/ibvc/ibvc.lic", "checkout-best-match", true, Collections.<String>emptyList(), vars_);
+	}
+
+	@Benchmark
+	public TreeMap<String, String> environmentParameters(){
+		return IbvcPostBuildSave.environmentParameters(vars_);
+	}
+
+	@Benchmark
+	public Map<String, String> buildEnvVars(){
+		Map<String, String> env = new HashMap<String, String>();
+		scm_.buildEnvVars(bestMatch_, env);
+		return env;
+	}
+
+	/**
+	 * IBVC output is streamed in pipe-sized chunks, as the launcher does
+	 */
+	@Benchmark
+	public String bestMatchParsing() throws IOException {
+		BestMatchOutputStream out = new BestMatchOutputStream(new NullOutputStream(), UTF8);
+		for(int off = 0; off < log_.length; off += CHUNK){
+			out.write(log_, off, Math.min(CHUNK, log_.length - off));
+		}
+		out.close();
+		return out.getIbvcRevision();
+	}
+}
@@ -0,0 +1,135 @@
+package jenkins.plugins.Ibvc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tee that forwards IBVC output to the build log while detecting the best-match line on the fly.
+ * Checkin output is scanned the same way for the checked-in revisions with {@link #CHECKIN}.
+ * <p>
+ * Only the current line is buffered, and at most {@link #MAX_LINE} bytes of it,
+ * so memory is bounded regardless of the output volume and the log is never read back.
+ * Output volume and time of first output are kept for {@link IbvcTimingAction}.
+ */
+public class BestMatchOutputStream extends OutputStream {
+
+	public static final Pattern BEST_MATCH = Pattern.compile(".*Checking out IBVC revision (?<IBVC>\\w+) and SFVC revision (?<SFVC>\\w+)$");
+	public static final Pattern CHECKIN = Pattern.compile(".*Checked in IBVC revision (?<IBVC>\\w+) and SFVC revision (?<SFVC>\\w+)$");
+
+	static final int MAX_LINE = 4096;
+
+	private final OutputStream out_;
+	private final Charset charset_;
+	private final Pattern pattern_;
+	private final byte[] line_ = new byte[MAX_LINE];
+	private int lineLength_ = 0;
+	private boolean lineTruncated_ = false;
+
+	private volatile String sfvcRevision_ = null;
+	private volatile String ibvcRevision_ = null;
+	private volatile long bytes_ = 0;
+	private volatile long firstOutputNanos_ = 0;
+
+	public BestMatchOutputStream(OutputStream out, Charset charset, Pattern pattern){
+		out_ = out;
+		charset_ = charset;
+		pattern_ = pattern;
+	}
+
+	public BestMatchOutputStream(OutputStream out, Charset charset){
+		this(out, charset, BEST_MATCH);
+	}
+
+	public BestMatchOutputStream(OutputStream out){
+		this(out, Charset.defaultCharset());
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		count(1);
+		out_.write(b);
+		append((byte)b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		count(len);
+		out_.write(b, off, len);
+		for(int i = off; i < off + len; ++i){
+			append(b[i]);
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out_.flush();
+	}
+
+	/**
+	 * Matches any pending partial line. The underlying stream is left open since it is the build log.
+	 */
+	@Override
+	public void close() throws IOException {
+		endLine();
+		out_.flush();
+	}
+
+	private void count(int len){
+		if((bytes_ == 0) && (len > 0)){
+			firstOutputNanos_ = System.nanoTime();
+		}
+		bytes_ += len;
+	}
+
+	private void append(byte b){
+		if(b == '\n'){
+			endLine();
+			return;
+		}
+		if(lineLength_ < MAX_LINE){
+			line_[lineLength_++] = b;
+		}
+		else{
+			lineTruncated_ = true;
+		}
+	}
+
+	private void endLine(){
+		// Best-match line is short, truncated lines can't be it.
+		if((lineLength_ > 0) && !lineTruncated_ && (ibvcRevision_ == null)){
+			int len = lineLength_;
+			if(line_[len - 1] == '\r'){
+				--len;
+			}
+			Matcher m = pattern_.matcher(new String(line_, 0, len, charset_));
+			if(m.matches()){
+				ibvcRevision_ = m.group("IBVC");
+				sfvcRevision_ = m.group("SFVC");
+			}
+		}
+		lineLength_ = 0;
+		lineTruncated_ = false;
+	}
+
+	public String getSfvcRevision(){
+		return sfvcRevision_;
+	}
+
+	public String getIbvcRevision(){
+		return ibvcRevision_;
+	}
+
+	public long getBytes(){
+		return bytes_;
+	}
+
+	/**
+	 * {@link System#nanoTime()} of the first output, only valid if {@link #getBytes()} is positive
+	 */
+	public long getFirstOutputNanos(){
+		return firstOutputNanos_;
+	}
+}
@@ -0,0 +1,27 @@
+package jenkins.plugins.Ibvc;
+
+import hudson.model.InvisibleAction;
+
+/**
+ * Best-match IBVC and SFVC revisions checked out by a build.
+ * Kept on the build rather than on the SCM or build wrapper, which are shared by all concurrent builds of a job.
+ * Read by {@link IbvcSCMPlugin#buildEnvVars} and {@link IbvcBuildWrapper#setUp} to set IBVC_BEST_MATCH_* variables.
+ */
+public class IbvcBestMatchAction extends InvisibleAction {
+
+	private final String ibvcRevision_;
+	private final String sfvcRevision_;
+
+	public IbvcBestMatchAction(String ibvcRevision, String sfvcRevision){
+		ibvcRevision_ = ibvcRevision;
+		sfvcRevision_ = sfvcRevision;
+	}
+
+	public String getIbvcRevision(){
+		return ibvcRevision_;
+	}
+
+	public String getSfvcRevision(){
+		return sfvcRevision_;
+	}
+}
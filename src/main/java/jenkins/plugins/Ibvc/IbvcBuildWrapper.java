@@ -5,31 +5,27 @@ package jenkins.plugins.Ibvc;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Collection;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.Map.Entry;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import hudson.AbortException;
 import hudson.EnvVars;
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.Launcher;
-import hudson.Launcher.ProcStarter;
-import hudson.Proc;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
-import hudson.model.Build;
 import hudson.model.BuildListener;
-import hudson.model.Result;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.TaskListener;
 import hudson.model.Descriptor.FormException;
-import hudson.model.Queue;
-import hudson.scm.SCM;
-import hudson.scm.SCMDescriptor;
 import hudson.tasks.BuildWrapper;
 import hudson.tasks.BuildWrapperDescriptor;
+import jenkins.tasks.SimpleBuildWrapper;
 import net.sf.json.JSONObject;
+import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest;
 
@@ -37,16 +33,16 @@ import org.kohsuke.stapler.StaplerRequest;
  * @author Build
  *
  */
-public class IbvcBuildWrapper extends BuildWrapper {
+public class IbvcBuildWrapper extends SimpleBuildWrapper {
 
     private final String ibvcConfig_;
     private final String sfvcRevision_;
     private final String addiotinalArguments_;
     private final Collection<IbvcParameter> parameters_;
     private final boolean ibvcCleanCheckout_;
-    
-    private String bestMatchSfvcRev_ = null;
-    private String bestMatchIbvcRev_ = null;
+    private final IbvcMtimeAudit mtimeAudit_;
+    private final Collection<IbvcConfigEntry> additionalConfigs_;
+    private final int parallelism_;
 
     @DataBoundConstructor
     public IbvcBuildWrapper(
@@ -55,26 +51,46 @@ public class IbvcBuildWrapper extends BuildWrapper {
 		, boolean ibvcCleanCheckout
 		, String addiotinalArguments
 		, Collection<IbvcParameter> parameters
+		, IbvcMtimeAudit mtimeAudit
+		, Collection<IbvcConfigEntry> additionalConfigs
+		, int parallelism
 		) {
+    	ibvcConfig = Util.fixNull(ibvcConfig);
     	if(ibvcConfig.length() > 0){
 		    File file1 = new File(ibvcConfig);
 		    ibvcConfig = file1.getPath();
     	}
 
 	    ibvcConfig_ = ibvcConfig;
-		sfvcRevision_ = sfvcRevision;
+		sfvcRevision_ = Util.fixNull(sfvcRevision);
 		ibvcCleanCheckout_ = ibvcCleanCheckout;
-		addiotinalArguments_ = addiotinalArguments;
+		addiotinalArguments_ = Util.fixNull(addiotinalArguments);
 		parameters_ = parameters;
+		mtimeAudit_ = mtimeAudit;
+		additionalConfigs_ = additionalConfigs;
+		parallelism_ = parallelism;
     }
     
+	/**
+	 * Set environment variables for the wrapped steps. 
+	 * Variables already set by IBVC SCM are kept.
+	 * <p>
+	 * In Pipeline there's no pre-checkout phase so IBVC checkout is launched here.
+	 */
     @Override
-    public BuildWrapper.Environment setUp(AbstractBuild build,
+    public void setUp(Context context,
+            Run<?,?> build,
+            FilePath workspace,
             Launcher launcher,
-            BuildListener listener)
+            TaskListener listener,
+            EnvVars initialEnvironment)
      throws IOException,
             InterruptedException{
     	
+    	if (!(build instanceof AbstractBuild)){
+    		checkout(build, workspace, launcher, listener);
+    	}
+    	
     	HashMap<String, String> envVars = new HashMap<String, String>();     
 
 		envVars.put("IBVC_CONFIG", ibvcConfig_);
@@ -90,131 +106,83 @@ public class IbvcBuildWrapper extends BuildWrapper {
 	    	}
     	}
     	
-    	if((bestMatchIbvcRev_ != null) && (bestMatchIbvcRev_.length() > 0)){
-    		envVars.put("IBVC_BEST_MATCH_IBVC_REV", bestMatchIbvcRev_);
-    	}
-    	
-    	if((bestMatchSfvcRev_ != null) && (bestMatchSfvcRev_.length() > 0)){
-    		envVars.put("IBVC_BEST_MATCH_SFVC_REV", bestMatchSfvcRev_);
+    	IbvcBestMatchAction bestMatch = build.getAction(IbvcBestMatchAction.class);
+    	if(bestMatch != null){
+    		envVars.put("IBVC_BEST_MATCH_IBVC_REV", bestMatch.getIbvcRevision());
+    		envVars.put("IBVC_BEST_MATCH_SFVC_REV", bestMatch.getSfvcRevision());
     	}
 
-    	IbvcBuildWrapper.Environment env = new IbvcBuildWrapper.Environment(envVars);
-    	env.buildEnvVars(envVars);
-    	return env;    	
+		for(Entry<String, String> k : envVars.entrySet()){
+			if (!initialEnvironment.containsKey(k.getKey())){
+				context.env(k.getKey(), k.getValue());
+			}
+		}
     }
 	
+    @Override
+    public void preCheckout(AbstractBuild build,
+            Launcher launcher,
+            BuildListener listener)
+     throws IOException,
+            InterruptedException
+    {    	
+    	checkout(build, build.getWorkspace(), launcher, listener);
+    }
 
 	/**
-	 * Launch IBVC with parameters
-	 * IBVC out and err are streamed to console log
-	 * Exit code is parsed to check IBVC result
-	 * On successful exit, IBVC out is parsed to detect best-match IBVC and SFVC revisions.
-	 * Revisions are kept to later be set in build environment variables.
+	 * Launch IBVC checkout-best-match, see {@link IbvcCheckout#checkout}.
+	 * Additional configurations are checked out concurrently, see {@link IbvcCheckout#checkoutAll}.
+	 * Then the workspace is audited with {@link IbvcMtimeAudit} if enabled.
+	 * Revisions are kept on the build to later be set in build environment variables.
 	 *  
 	 */
-    @Override
-    public void preCheckout(AbstractBuild build,
+    private void checkout(Run<?,?> build,
+            FilePath workspace,
             Launcher launcher,
-            BuildListener listener)
+            TaskListener listener)
      throws IOException,
             InterruptedException
     {    	
-	    if (build.getProject() instanceof Queue.FlyweightTask){
+	    if (Util.isFlyweight(build)){
 	        listener.getLogger().println( Messages.Skipping_FlyweightTask());
 	        return;
 	    }
 
-	    final EnvVars vars = build.getEnvironment(listener);
-	    
-    	// Detect home, license file from node properties
-		String ibvcPath = vars.expand(Util.nodeIbvcPath(build));
-		listener.getLogger().println(String.format("%s: '%s'",Messages.IBVC_PATH(), ibvcPath));
-
-		String ibvcLic = vars.expand(Util.nodeLicensePath(build));
-	    listener.getLogger().println(String.format("%s: '%s'", Messages.IBVC_LICENSE(), ibvcLic));
-	    
-		ArrayList<String> args = new ArrayList<String>();
-        ProcStarter ps = launcher.new ProcStarter();
-        
-        // Build command line
-		args.add(ibvcPath);
-	    args.add("--operation");
-		args.add("checkout-best-match");
-		
-		if(ibvcConfig_.length() > 0){
-		    args.add("--ibvc-config");
-			args.add(vars.expand(ibvcConfig_));
-		}
-		
-		if( ibvcLic.length() > 0){
-			args.add("--lic-file");
-			args.add(vars.expand(ibvcLic));
-		}
-			
-		if( sfvcRevision_.length() > 0){
-			args.add("--sfvc-revision");
-			args.add(vars.expand(sfvcRevision_));
-		}
-		
-		if (ibvcCleanCheckout_){
-			args.add("--ibvc-clean-checkout");
-		}			
-		
-		if( addiotinalArguments_.length() > 0){
-			args.add(vars.expand(addiotinalArguments_));
-		}
-
-		if( parameters_ != null){
-			for( IbvcParameter p : parameters_){
-				args.add("--param-" + vars.expand( p.getName()));
-				args.add(vars.expand(p.getValue()));
-			}
-		}
-
-        ps.cmds(args);
-        ps.stderr(listener.getLogger());
-        ps.stdout(listener.getLogger());
-        
-        try {
-        	Proc ibPrc = launcher.launch(ps);
-        	int ibExitCode = ibPrc.join();
-
-        	// Analyze exit code.
-        	switch( ibExitCode){
-        	case 0:
-    	        listener.getLogger().println( Messages.IBVC_finished_successfully());
-    	        break;
-    	        
-			default:
-				build.setResult(Result.FAILURE);
-				throw new AbortException(Messages.IBVC_terminated_with_errors());
-        	}
-
-		} catch (IOException e) {
-	        listener.getLogger().println( e.getMessage());
-			throw e;
-		} catch (InterruptedException e) {
-	        listener.getLogger().println( String.format( "%s: %s", Messages.IBVC_failed_to_finish_properly(), e.getMessage()));
-			throw e;
-		}
-        
-        // We get here after successful checkout. Parsing best-match
-        Pattern regex = Pattern.compile(".*Checking out IBVC revision (?<IBVC>\\w+) and SFVC revision (?<SFVC>\\w+)$");
-        for (Object line : build.getLog(10000)){
-        	Matcher m = regex.matcher(line.toString());
-        	if(m.matches()){
-        		bestMatchIbvcRev_ = m.group("IBVC");
-        		bestMatchSfvcRev_ = m.group("SFVC");
-
-    	        listener.getLogger().println( String.format( 
-    	        		"Will write IBVC_BEST_MATCH_SFVC_REV='%s' and IBVC_BEST_MATCH_IBVC_REV='%s' to build environment"
-    	        		, bestMatchSfvcRev_
-    	        		, bestMatchIbvcRev_));
-        		break;
-        	}
-        }
+	    long startNanos = System.nanoTime();
+	    long startedAt = System.currentTimeMillis();
+	    try {
+		    IbvcCheckout main = newCheckout();
+		    if ((additionalConfigs_ == null) || additionalConfigs_.isEmpty()){
+		    	main.checkout("checkout-best-match", build, workspace, launcher, listener, null);
+		    }
+		    else{
+			    List<String> names = new ArrayList<String>();
+			    List<IbvcCheckout> checkouts = new ArrayList<IbvcCheckout>();
+			    names.add(ibvcConfig_);
+			    checkouts.add(main);
+			    for (IbvcConfigEntry c : additionalConfigs_){
+			    	names.add(c.getIbvcConfig());
+			    	checkouts.add(new IbvcCheckout(c.getIbvcConfig(), sfvcRevision_, ibvcCleanCheckout_, addiotinalArguments_, c.getParameters()));
+			    }
+			    IbvcCheckout.checkoutAll("checkout-best-match", checkouts, names, (parallelism_ > 0) ? parallelism_ : checkouts.size(), build, workspace, launcher, listener);
+		    }
+
+		    if (mtimeAudit_ != null){
+		    	mtimeAudit_.audit(build, workspace, listener);
+		    }
+	    } finally {
+	    	Node node = Util.workspaceNode(workspace);
+	    	IbvcTimingAction.recordOverhead(build, "checkout-best-match", (node != null) ? node.getNodeName() : "", startNanos, startedAt);
+	    }
 	}
     
+	/**
+	 * Checkout of the main configuration
+	 */
+	IbvcCheckout newCheckout(){
+		return new IbvcCheckout(ibvcConfig_, sfvcRevision_, ibvcCleanCheckout_, addiotinalArguments_, parameters_);
+	}
+
 	public String getIbvcConfig(){
 		return ibvcConfig_;
 	}
@@ -230,36 +198,23 @@ public class IbvcBuildWrapper extends BuildWrapper {
 	public Collection<IbvcParameter> getParameters(){
 		return parameters_;
 	}
+	/**
+	 * Post-checkout modification time audit, or null
+	 */
+	public IbvcMtimeAudit getMtimeAudit(){
+		return mtimeAudit_;
+	}
+	public Collection<IbvcConfigEntry> getAdditionalConfigs(){
+		return additionalConfigs_;
+	}
+	/**
+	 * Maximal count of concurrent checkouts with additional configurations, 0 for all at once
+	 */
+	public int getParallelism(){
+		return parallelism_;
+	}
 	
-	public class Environment extends BuildWrapper.Environment {
-		
-		private final Map<String,String> envVars_;
-		
-		public Environment(Map<String,String> envVars){
-			envVars_ = envVars;
-		}
-		
-		@Override
-		public void buildEnvVars(Map<String,String> env){
-			for(Entry<String, String> k : envVars_.entrySet()){
-				if (!env.containsKey(k.getKey())){
-					env.put(k.getKey(), k.getValue());
-				}
-			}
-		}
-		
-		@Override
-		public boolean tearDown(AbstractBuild build, BuildListener listener) throws IOException, InterruptedException {
-			return true;
-		}
-		
-		@Override
-		public boolean tearDown(Build build, BuildListener listener) throws IOException, InterruptedException{
-			return true;
-		}
-    }
-
-    @Extension
+    @Extension @Symbol("ibvcCheckout")
     public static final class DescriptorImpl extends BuildWrapperDescriptor {
         public DescriptorImpl() {
 			super(IbvcBuildWrapper.class);
@@ -0,0 +1,19 @@
+package jenkins.plugins.Ibvc;
+
+import java.io.File;
+import java.io.IOException;
+import hudson.model.Run;
+import hudson.scm.ChangeLogParser;
+import hudson.scm.RepositoryBrowser;
+
+/**
+ * Parses the IBVC file delta written by {@link IbvcSCMPlugin#checkout}.
+ * Entries are not loaded here, {@link IbvcChangeLogSet} streams them from the file when iterated.
+ */
+public class IbvcChangeLogParser extends ChangeLogParser {
+
+	@Override
+	public IbvcChangeLogSet parse(Run build, RepositoryBrowser<?> browser, File changelogFile) throws IOException {
+		return new IbvcChangeLogSet(build, browser, changelogFile);
+	}
+}
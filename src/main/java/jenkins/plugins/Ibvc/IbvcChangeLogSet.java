@@ -0,0 +1,243 @@
+package jenkins.plugins.Ibvc;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import hudson.model.Run;
+import hudson.model.User;
+import hudson.scm.ChangeLogSet;
+import hudson.scm.EditType;
+import hudson.scm.RepositoryBrowser;
+
+/**
+ * IBVC file delta of a build.
+ * <p>
+ * The delta file has one line per changed file: edit type ('A', 'M' or 'D'), a space and the file path.
+ * Entries are streamed from the file a page at a time whenever the set is iterated, and the file is not kept open
+ * between pages, so huge deltas cost neither heap nor file handles on the controller.
+ */
+public class IbvcChangeLogSet extends ChangeLogSet<IbvcChangeLogSet.Entry> {
+
+	private static final Logger LOGGER = Logger.getLogger(IbvcChangeLogSet.class.getName());
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	static final int PAGE_SIZE = 1024;
+
+	/**
+	 * Maximal number of entries rendered in the changes page and exported in remote API.
+	 */
+	public static final int MAX_ITEMS = 1000;
+
+	private final File file_;
+	private transient int size_ = -1;
+
+	public IbvcChangeLogSet(Run<?,?> build, RepositoryBrowser<?> browser, File file){
+		super(build, browser);
+		file_ = file;
+	}
+
+	@Override
+	public boolean isEmptySet(){
+		return !iterator().hasNext();
+	}
+
+	@Override
+	public String getKind(){
+		return "ibvc";
+	}
+
+	@Override
+	public Iterator<Entry> iterator(){
+		return new PagedIterator();
+	}
+
+	/**
+	 * Only the first {@link #MAX_ITEMS} entries, to keep remote API and views bounded.
+	 */
+	@Override
+	public Object[] getItems(){
+		return head(MAX_ITEMS).toArray();
+	}
+
+	public int getMaxItems(){
+		return MAX_ITEMS;
+	}
+
+	public List<Entry> head(int max){
+		List<Entry> r = new ArrayList<Entry>();
+		for(Iterator<Entry> it = iterator(); it.hasNext() && (r.size() < max); ){
+			r.add(it.next());
+		}
+		return r;
+	}
+
+	/**
+	 * Count of changed files. Counted by streaming the file once.
+	 */
+	public synchronized int getSize(){
+		if(size_ < 0){
+			int size = 0;
+			for(Iterator<Entry> it = iterator(); it.hasNext(); it.next()){
+				++size;
+			}
+			size_ = size;
+		}
+		return size_;
+	}
+
+	private final class PagedIterator implements Iterator<Entry> {
+
+		private final ArrayDeque<Entry> page_ = new ArrayDeque<Entry>();
+		private long offset_ = 0;
+		private boolean eof_ = false;
+
+		public boolean hasNext(){
+			if(page_.isEmpty() && !eof_){
+				try {
+					readPage();
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Failed to read IBVC change log " + file_, e);
+					eof_ = true;
+				}
+			}
+			return !page_.isEmpty();
+		}
+
+		public Entry next(){
+			if(!hasNext()){
+				throw new NoSuchElementException();
+			}
+			return page_.poll();
+		}
+
+		public void remove(){
+			throw new UnsupportedOperationException();
+		}
+
+		private void readPage() throws IOException {
+			if((file_ == null) || !file_.exists()){
+				eof_ = true;
+				return;
+			}
+
+			InputStream in = new BufferedInputStream(new FileInputStream(file_));
+			try {
+				long skip = offset_;
+				while(skip > 0){
+					long n = in.skip(skip);
+					if(n <= 0){
+						eof_ = true;
+						return;
+					}
+					skip -= n;
+				}
+
+				ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+				while(page_.size() < PAGE_SIZE){
+					int b = in.read();
+					if(b < 0){
+						addLine(line);
+						eof_ = true;
+						return;
+					}
+					++offset_;
+					if(b == '\n'){
+						addLine(line);
+						line.reset();
+					}
+					else{
+						line.write(b);
+					}
+				}
+			} finally {
+				in.close();
+			}
+		}
+
+		private void addLine(ByteArrayOutputStream bytes){
+			String line = new String(bytes.toByteArray(), UTF8).trim();
+			if(line.length() == 0){
+				return;
+			}
+
+			EditType type = EditType.EDIT;
+			String path = line;
+			if((line.length() > 2) && (line.charAt(1) == ' ')){
+				switch(line.charAt(0)){
+				case 'A':
+					type = EditType.ADD;
+					path = line.substring(2);
+					break;
+				case 'D':
+					type = EditType.DELETE;
+					path = line.substring(2);
+					break;
+				case 'M':
+					path = line.substring(2);
+					break;
+				}
+			}
+			page_.add(new Entry(IbvcChangeLogSet.this, type, path));
+		}
+	}
+
+	public static class Entry extends ChangeLogSet.Entry {
+
+		private final EditType editType_;
+		private final String path_;
+
+		Entry(IbvcChangeLogSet parent, EditType editType, String path){
+			editType_ = editType;
+			path_ = path;
+			setParent(parent);
+		}
+
+		public EditType getEditType(){
+			return editType_;
+		}
+
+		public String getPath(){
+			return path_;
+		}
+
+		@Override
+		public String getMsg(){
+			return String.format("%s %s", editType_.getName(), path_);
+		}
+
+		@Override
+		public User getAuthor(){
+			return User.getUnknown();
+		}
+
+		@Override
+		public Collection<String> getAffectedPaths(){
+			return Collections.singleton(path_);
+		}
+
+		@Override
+		public Collection<? extends AffectedFile> getAffectedFiles(){
+			return Collections.singleton(new AffectedFile() {
+				public String getPath(){
+					return path_;
+				}
+				public EditType getEditType(){
+					return editType_;
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package jenkins.plugins.Ibvc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import javax.servlet.ServletException;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+import org.kohsuke.stapler.framework.io.LargeText;
+
+/**
+ * State, exit code and log of an asynchronous IBVC checkin, attached to the build it checks in.
+ * <p>
+ * A build may run several asynchronous checkins, e.g. in parallel Pipeline branches. 
+ * Each gets its own log file and URL by its index in the build, the first one keeps the plain names.
+ */
+public class IbvcCheckinAction implements RunAction2 {
+
+	public enum State {
+		QUEUED,
+		RUNNING,
+		SUCCEEDED,
+		FAILED,
+		SUPERSEDED
+	}
+
+	static final String LOG_FILE = "ibvc-checkin";
+
+	private final String nodeName_;
+	private volatile int index_ = 0;
+	private volatile State state_ = State.QUEUED;
+	private volatile int exitCode_ = -1;
+	private final long queuedAt_ = System.currentTimeMillis();
+	private volatile long startedAt_ = 0;
+	private volatile long finishedAt_ = 0;
+	private volatile String supersededBy_ = null;
+
+	private transient Run<?,?> run_;
+
+	public IbvcCheckinAction(String nodeName){
+		nodeName_ = nodeName;
+	}
+
+	/**
+	 * Attach to the build as its next checkin, before the checkin may start
+	 */
+	void attach(Run<?,?> build){
+		synchronized (build){
+			index_ = build.getActions(IbvcCheckinAction.class).size();
+			build.addAction(this);
+		}
+	}
+
+	private String suffix(){
+		return (index_ > 0) ? ("-" + index_) : "";
+	}
+
+	void started(){
+		startedAt_ = System.currentTimeMillis();
+		state_ = State.RUNNING;
+	}
+
+	void finished(int exitCode){
+		if(startedAt_ == 0){
+			startedAt_ = System.currentTimeMillis();
+		}
+		finishedAt_ = System.currentTimeMillis();
+		exitCode_ = exitCode;
+		state_ = (exitCode == 0) ? State.SUCCEEDED : State.FAILED;
+	}
+
+	void superseded(String by){
+		supersededBy_ = by;
+		finishedAt_ = System.currentTimeMillis();
+		state_ = State.SUPERSEDED;
+	}
+
+	File getLogFile(Run<?,?> build){
+		return new File(build.getRootDir(), LOG_FILE + suffix() + ".log");
+	}
+
+	public Run<?,?> getRun(){
+		return run_;
+	}
+	public String getNodeName(){
+		return nodeName_;
+	}
+	public State getState(){
+		return state_;
+	}
+	public String getSupersededBy(){
+		return supersededBy_;
+	}
+	public int getExitCode(){
+		return exitCode_;
+	}
+	public long getWaitMillis(){
+		long end = startedAt_;
+		if(end == 0){
+			end = (finishedAt_ > 0) ? finishedAt_ : System.currentTimeMillis();
+		}
+		return end - queuedAt_;
+	}
+	public long getRunMillis(){
+		long started = startedAt_;
+		if(started == 0){
+			return 0;
+		}
+		long finished = finishedAt_;
+		return ((finished > 0) ? finished : System.currentTimeMillis()) - started;
+	}
+
+	/**
+	 * Serves checkin log, including progressive output while it is still running.
+	 */
+	public void doProgressiveLog(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
+		if(run_ == null){
+			rsp.sendError(StaplerResponse.SC_NOT_FOUND);
+			return;
+		}
+		File log = getLogFile(run_);
+		if(!log.exists()){
+			rsp.setContentType("text/plain;charset=UTF-8");
+			return;
+		}
+		State state = state_;
+		boolean completed = (state != State.QUEUED) && (state != State.RUNNING);
+		new LargeText(log, Charset.defaultCharset(), completed).doProgressText(req, rsp);
+	}
+
+	public void onAttached(Run<?,?> r){
+		run_ = r;
+	}
+
+	public void onLoad(Run<?,?> r){
+		run_ = r;
+	}
+
+	public String getIconFileName(){
+		return "clipboard.png";
+	}
+
+	public String getDisplayName(){
+		return (index_ > 0) ? String.format("%s %d", Messages.IBVC_checkin_log(), index_ + 1) : Messages.IBVC_checkin_log();
+	}
+
+	public String getUrlName(){
+		return "ibvcCheckin" + suffix();
+	}
+}
@@ -0,0 +1,472 @@
+package jenkins.plugins.Ibvc;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Action;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.TransientComputerActionFactory;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Bounded queue of asynchronous IBVC checkins of a node.
+ * <p>
+ * At most {@link IbvcNodeProperties#getAsyncCheckinLimit()} checkins run concurrently on a node,
+ * and at most {@link IbvcNodeProperties#getAsyncCheckinQueueSize()} wait for their turn.
+ * When the queue is full, {@link #submit} blocks the calling build until a slot frees up.
+ * <p>
+ * Each checkin logs to its build folder and reports its state and exit code in {@link IbvcCheckinAction}.
+ * Checkins of the same IBVC configuration and parameters may be coalesced so only the newest waiting build is checked in.
+ */
+public class IbvcCheckinQueue implements Action {
+
+	private static final Logger LOGGER = Logger.getLogger(IbvcCheckinQueue.class.getName());
+
+	private static final ConcurrentMap<String, IbvcCheckinQueue> queues_ = new ConcurrentHashMap<String, IbvcCheckinQueue>();
+
+	private final String nodeName_;
+	private final ThreadPoolExecutor executor_;
+
+	private final ReentrantLock lock_ = new ReentrantLock();
+	private final Condition slotFreed_ = lock_.newCondition();
+	private int limit_;
+	private int queueSize_;
+	private int queued_ = 0;
+	private int running_ = 0;
+	private final Map<String, Checkin> pending_ = new HashMap<String, Checkin>();
+	// Queued and running checkins by workspace path
+	private final Map<String, Integer> workspaces_ = new HashMap<String, Integer>();
+
+	private long completed_ = 0;
+	private long failed_ = 0;
+	private long superseded_ = 0;
+	private long totalWaitMillis_ = 0;
+	private long maxWaitMillis_ = 0;
+	private long totalRunMillis_ = 0;
+	private long maxRunMillis_ = 0;
+
+	private IbvcCheckinQueue(String nodeName, int limit, int queueSize){
+		nodeName_ = nodeName;
+		limit_ = limit;
+		queueSize_ = queueSize;
+		executor_ = new ThreadPoolExecutor(limit, limit, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>()
+				, new NamingThreadFactory(new DaemonThreadFactory(), "IBVC checkin " + nodeName));
+		executor_.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Get the queue of a node. Limits are updated from the node's current {@link IbvcNodeProperties}.
+	 */
+	public static IbvcCheckinQueue forNode(Node node){
+		String name = (node != null) ? node.getNodeName() : "";
+		int limit = IbvcNodeProperties.DEFAULT_ASYNC_CHECKIN_LIMIT;
+		int queueSize = IbvcNodeProperties.DEFAULT_ASYNC_CHECKIN_QUEUE_SIZE;
+		IbvcNodeProperties np = Util.nodeProperties(node);
+		if(np != null){
+			limit = np.getAsyncCheckinLimit();
+			queueSize = np.getAsyncCheckinQueueSize();
+		}
+
+		IbvcCheckinQueue q = queues_.get(name);
+		if(q == null){
+			IbvcCheckinQueue tmp = new IbvcCheckinQueue(name, limit, queueSize);
+			q = queues_.putIfAbsent(name, tmp);
+			if(q == null){
+				return tmp;
+			}
+		}
+		q.setLimits(limit, queueSize);
+		return q;
+	}
+
+	private void setLimits(int limit, int queueSize){
+		lock_.lock();
+		try {
+			if(limit != limit_){
+				// Order matters: core size can't exceed maximum size
+				if(limit > executor_.getMaximumPoolSize()){
+					executor_.setMaximumPoolSize(limit);
+					executor_.setCorePoolSize(limit);
+				}
+				else{
+					executor_.setCorePoolSize(limit);
+					executor_.setMaximumPoolSize(limit);
+				}
+				limit_ = limit;
+			}
+			queueSize_ = queueSize;
+			slotFreed_.signalAll();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Queue a checkin. Blocks while the node's queue is full.
+	 * <p>
+	 * With coalescing, a checkin that is still waiting in queue with the same scope is superseded: 
+	 * the newer build takes over its queue slot and the older build is not checked in. 
+	 * If the waiting checkin belongs to a newer build, the submitted one is superseded right away.
+	 * 
+	 * @param build Build that is checked in. Checkin log and result are attached to it
+	 * @param launcher Launcher of the build's node
+	 * @param ibvc IBVC installation of the build's node
+	 * @param args IBVC command line
+	 * @param repository IBVC repository, whose {@link IbvcRepositoryPool} checkin slot the checkin waits for when it runs
+	 * @param scope {@link IbvcRevisionIndex} scope of the checkin. Checked in revisions are recorded there
+	 * @param purgeArgs IBVC command line of the {@link IbvcPurge} scheduled once the checkin succeeded, or null
+	 * @param coalesce Whether checkins of the same scope may supersede each other
+	 * @param workspace Workspace to create an {@link IbvcResultFile} in when the checkin runs, if the installation supports it
+	 * @param listener Build listener, used until the checkin is queued
+	 */
+	public IbvcCheckinAction submit(Run<?,?> build, Launcher launcher, IbvcInstallation ibvc, List<String> args, String repository, String scope, List<String> purgeArgs, boolean coalesce, FilePath workspace, TaskListener listener) throws InterruptedException, IOException {
+		IbvcCheckinAction action = new IbvcCheckinAction(nodeName_);
+		Payload payload = new Payload(build, launcher, ibvc, new ArrayList<String>(args), repository, scope, purgeArgs, workspace, action);
+		String coalesceKey = coalesce ? scope : null;
+		Payload superseded = null;
+		Checkin checkin = null;
+
+		lock_.lock();
+		try {
+			boolean waitLogged = false;
+			while(true){
+				Checkin pending = (coalesceKey != null) ? pending_.get(coalesceKey) : null;
+				if(pending != null){
+					if(pending.payload_.build_.getTimeInMillis() > build.getTimeInMillis()){
+						superseded = payload;
+						payload = pending.payload_;
+					}
+					else{
+						superseded = pending.payload_;
+						pending.payload_ = payload;
+						track(superseded, -1);
+						track(payload, 1);
+					}
+					++superseded_;
+					break;
+				}
+
+				if(queued_ + running_ < limit_ + queueSize_){
+					++queued_;
+					checkin = new Checkin(coalesceKey, payload);
+					track(payload, 1);
+					if(coalesceKey != null){
+						pending_.put(coalesceKey, checkin);
+					}
+					break;
+				}
+
+				if(!waitLogged){
+					listener.getLogger().println(Messages.IBVC_checkin_queue_full(queued_, running_));
+					waitLogged = true;
+				}
+				slotFreed_.await();
+			}
+		} finally {
+			lock_.unlock();
+		}
+
+		action.attach(build);
+		if(superseded != null){
+			superseded.action_.superseded(payload.build_.getFullDisplayName());
+			if(superseded.build_ != build){
+				superseded.build_.save();
+			}
+			listener.getLogger().println(Messages.IBVC_checkin_superseded(superseded.build_.getFullDisplayName(), payload.build_.getFullDisplayName()));
+		}
+		build.save();
+
+		if(checkin != null){
+			try {
+				executor_.execute(checkin);
+			} catch (RuntimeException e) {
+				release(payload, false, 0, 0, 0);
+				throw e;
+			}
+		}
+
+		if(action.getState() == IbvcCheckinAction.State.QUEUED){
+			listener.getLogger().println(Messages.IBVC_checkin_queued(nodeName_));
+		}
+		return action;
+	}
+
+	/**
+	 * What a queued checkin will check in. Replaced when a newer build supersedes it
+	 */
+	private static final class Payload {
+		final Run<?,?> build_;
+		final Launcher launcher_;
+		final IbvcInstallation ibvc_;
+		final List<String> cmds_;
+		final String repository_;
+		final String scope_;
+		final List<String> purgeArgs_;
+		final FilePath workspace_;
+		final IbvcCheckinAction action_;
+
+		Payload(Run<?,?> build, Launcher launcher, IbvcInstallation ibvc, List<String> cmds, String repository, String scope, List<String> purgeArgs, FilePath workspace, IbvcCheckinAction action){
+			build_ = build;
+			launcher_ = launcher;
+			ibvc_ = ibvc;
+			cmds_ = cmds;
+			repository_ = repository;
+			scope_ = scope;
+			purgeArgs_ = purgeArgs;
+			workspace_ = workspace;
+			action_ = action;
+		}
+	}
+
+	private final class Checkin implements Runnable {
+		private final String key_;
+		private Payload payload_; // Guarded by lock_
+
+		Checkin(String key, Payload payload){
+			key_ = key;
+			payload_ = payload;
+		}
+
+		public void run(){
+			Payload payload;
+			lock_.lock();
+			try {
+				if(key_ != null){
+					pending_.remove(key_);
+				}
+				payload = payload_;
+				--queued_;
+				++running_;
+			} finally {
+				lock_.unlock();
+			}
+
+			runCheckin(payload);
+		}
+	}
+
+	private void runCheckin(Payload payload){
+		Run<?,?> build = payload.build_;
+		IbvcCheckinAction action = payload.action_;
+		action.started();
+		int exitCode = -1;
+		IbvcResultFile resultFile = null;
+		try {
+			List<String> cmds = new ArrayList<String>(payload.cmds_);
+			resultFile = IbvcResultFile.create(payload.ibvc_, payload.workspace_);
+			if(resultFile != null){
+				resultFile.addArgs(cmds);
+			}
+
+			File logFile = action.getLogFile(build);
+			OutputStream log = new FileOutputStream(logFile);
+			IbvcRepositoryPool.Permit permit = null;
+			try {
+				permit = IbvcRepositoryPool.get(IbvcRepositoryPool.CHECKIN, payload.repository_).acquire(build, nodeName_, new PrintStream(log, true));
+				BestMatchOutputStream out = new BestMatchOutputStream(log, build.getCharset(), BestMatchOutputStream.CHECKIN);
+				long start = System.nanoTime();
+				exitCode = IbvcWorker.launch(payload.ibvc_, payload.launcher_, cmds, out, log);
+				out.close();
+				permit.release();
+				if(resultFile != null){
+					resultFile.read();
+				}
+				IbvcTimingAction.record(build, "checkin", nodeName_, start, out, exitCode, resultFile);
+				IbvcRevisionState state = IbvcResultFile.revisions(resultFile, out);
+				if((exitCode == 0) && (state != null)){
+					IbvcRevisionIndex.get().put(payload.scope_, state.getSfvcRevision(), state.getIbvcRevision());
+				}
+				if((exitCode == 0) && (payload.purgeArgs_ != null)){
+					IbvcPurge.checkedIn(payload.scope_, nodeName_, payload.purgeArgs_);
+				}
+			} finally {
+				if(permit != null){
+					permit.release();
+				}
+				log.close();
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "IBVC checkin of " + build + " failed", e);
+		} catch (InterruptedException e) {
+			LOGGER.log(Level.WARNING, "IBVC checkin of " + build + " was interrupted", e);
+		} catch (RuntimeException e) {
+			LOGGER.log(Level.WARNING, "IBVC checkin of " + build + " failed", e);
+		} finally {
+			if(resultFile != null){
+				try {
+					resultFile.delete();
+				} catch (Exception e) {
+					LOGGER.log(Level.FINE, "Failed to delete IBVC result file of " + build, e);
+				}
+			}
+			action.finished(exitCode);
+			release(payload, true, action.getWaitMillis(), action.getRunMillis(), exitCode);
+			try {
+				build.save();
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to save IBVC checkin result of " + build, e);
+			}
+		}
+	}
+
+	private void release(Payload payload, boolean running, long waitMillis, long runMillis, int exitCode){
+		lock_.lock();
+		try {
+			track(payload, -1);
+			if(running){
+				--running_;
+				++completed_;
+				if(exitCode != 0){
+					++failed_;
+				}
+				totalWaitMillis_ += waitMillis;
+				maxWaitMillis_ = Math.max(maxWaitMillis_, waitMillis);
+				totalRunMillis_ += runMillis;
+				maxRunMillis_ = Math.max(maxRunMillis_, runMillis);
+			}
+			else{
+				--queued_;
+			}
+			slotFreed_.signalAll();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Count a checkin in or out of its workspace. Called with lock_ held
+	 */
+	private void track(Payload payload, int delta){
+		if(payload.workspace_ == null){
+			return;
+		}
+		String path = payload.workspace_.getRemote();
+		Integer count = workspaces_.get(path);
+		int n = ((count != null) ? count : 0) + delta;
+		if(n > 0){
+			workspaces_.put(path, n);
+		}
+		else{
+			workspaces_.remove(path);
+		}
+	}
+
+	/**
+	 * Whether a checkin of a workspace is queued or running on a node
+	 * 
+	 * @param nodeName Node name, empty for the master
+	 * @param path Workspace path on the node
+	 */
+	static boolean hasCheckins(String nodeName, String path){
+		IbvcCheckinQueue q = queues_.get(nodeName);
+		if(q == null){
+			return false;
+		}
+		q.lock_.lock();
+		try { return q.workspaces_.containsKey(path); } finally { q.lock_.unlock(); }
+	}
+
+	public String getNodeName(){
+		return nodeName_;
+	}
+	public int getLimit(){
+		lock_.lock();
+		try { return limit_; } finally { lock_.unlock(); }
+	}
+	public int getQueueSize(){
+		lock_.lock();
+		try { return queueSize_; } finally { lock_.unlock(); }
+	}
+	public int getQueued(){
+		lock_.lock();
+		try { return queued_; } finally { lock_.unlock(); }
+	}
+	public int getRunning(){
+		lock_.lock();
+		try { return running_; } finally { lock_.unlock(); }
+	}
+	public long getCompleted(){
+		lock_.lock();
+		try { return completed_; } finally { lock_.unlock(); }
+	}
+	public long getFailed(){
+		lock_.lock();
+		try { return failed_; } finally { lock_.unlock(); }
+	}
+	public long getSuperseded(){
+		lock_.lock();
+		try { return superseded_; } finally { lock_.unlock(); }
+	}
+	public long getAverageWaitMillis(){
+		lock_.lock();
+		try { return (completed_ > 0) ? (totalWaitMillis_ / completed_) : 0; } finally { lock_.unlock(); }
+	}
+	public long getMaxWaitMillis(){
+		lock_.lock();
+		try { return maxWaitMillis_; } finally { lock_.unlock(); }
+	}
+	public long getAverageRunMillis(){
+		lock_.lock();
+		try { return (completed_ > 0) ? (totalRunMillis_ / completed_) : 0; } finally { lock_.unlock(); }
+	}
+	public long getMaxRunMillis(){
+		lock_.lock();
+		try { return maxRunMillis_; } finally { lock_.unlock(); }
+	}
+
+	public String getIconFileName(){
+		return "clock.png";
+	}
+
+	public String getDisplayName(){
+		return Messages.IBVC_checkin_queue();
+	}
+
+	public String getUrlName(){
+		return "ibvcCheckinQueue";
+	}
+
+	/**
+	 * Shows the queue on pages of nodes that have IBVC properties or that already ran asynchronous checkins.
+	 */
+	@Extension
+	public static final class ComputerActionFactory extends TransientComputerActionFactory {
+		@Override
+		public Collection<? extends Action> createFor(Computer target){
+			Node node = target.getNode();
+			String name = (node != null) ? node.getNodeName() : target.getName();
+			IbvcCheckinQueue q = queues_.get(name);
+			if((q == null) && (Util.nodeProperties(node) != null)){
+				q = forNode(node);
+			}
+			if(q == null){
+				return Collections.emptyList();
+			}
+			return Collections.singletonList(q);
+		}
+	}
+}
@@ -0,0 +1,442 @@
+package jenkins.plugins.Ibvc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Job;
+import hudson.model.Node;
+import hudson.model.ParametersAction;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.IOUtils;
+import hudson.util.NamingThreadFactory;
+import hudson.util.StreamTaskListener;
+
+/**
+ * IBVC checkout and best-match query, shared by {@link IbvcSCMPlugin} and {@link IbvcBuildWrapper}.
+ */
+class IbvcCheckout {
+
+	private final String ibvcConfig_;
+	private final String sfvcRevision_;
+	private final boolean ibvcCleanCheckout_;
+	private final String addiotinalArguments_;
+	private final Collection<IbvcParameter> parameters_;
+
+	IbvcCheckout(String ibvcConfig, String sfvcRevision, boolean ibvcCleanCheckout, String addiotinalArguments, Collection<IbvcParameter> parameters){
+		ibvcConfig_ = ibvcConfig;
+		sfvcRevision_ = sfvcRevision;
+		ibvcCleanCheckout_ = ibvcCleanCheckout;
+		addiotinalArguments_ = addiotinalArguments;
+		parameters_ = parameters;
+	}
+
+	/**
+	 * Expanded parameters, sorted by name
+	 */
+	TreeMap<String, String> expandParameters(EnvVars vars){
+		TreeMap<String, String> params = new TreeMap<String, String>();
+		if( parameters_ != null){
+			for( IbvcParameter p : parameters_){
+				params.put(vars.expand(p.getName()), vars.expand(p.getValue()));
+			}
+		}
+		return params;
+	}
+
+	/**
+	 * Revision index scope of this configuration and parameters
+	 */
+	String scope(Job<?,?> job, EnvVars vars){
+		return IbvcRevisionIndex.scope(job.getFullName(), vars.expand(ibvcConfig_), expandParameters(vars));
+	}
+
+	/**
+	 * Repository of this configuration, see {@link IbvcRevisionIndex#repository}
+	 */
+	String repository(Job<?,?> job, EnvVars vars){
+		return IbvcRevisionIndex.repository(job.getFullName(), vars.expand(ibvcConfig_));
+	}
+
+	/**
+	 * Repository whose checkout slots the build takes, see {@link IbvcConcurrencyDispatcher}.
+	 * Expanded from the build parameters only, as the queue knows nothing else about the build.
+	 */
+	String slotRepository(Job<?,?> job, ParametersAction parameters){
+		EnvVars vars = new EnvVars();
+		Util.addParameters(vars, parameters);
+		return repository(job, vars);
+	}
+
+	/**
+	 * Key of {@link IbvcPollCache}. Polls all run on {@link IbvcPollCache#queryNode()}, where a relative configuration
+	 * is the same file for every job, so the key isn't qualified with the job.
+	 */
+	String pollKey(Node node, EnvVars vars){
+		return String.format("%s\n%s\n%s\n%s\n%s", node.getNodeName(), vars.expand(Util.fixNull(ibvcConfig_)), expandParameters(vars)
+				, targetSfvcRevision(vars), vars.expand(Util.fixNull(addiotinalArguments_)));
+	}
+
+	String targetSfvcRevision(EnvVars vars){
+		return vars.expand(sfvcRevision_);
+	}
+
+	/**
+	 * Build IBVC command line
+	 * 
+	 * @param operation IBVC operation, or null for IBVC's default checkout
+	 * @param extraArgs Arguments added before the additional arguments and parameters
+	 */
+	ArrayList<String> args(String ibvcPath, String ibvcLic, String operation, boolean checkout, List<String> extraArgs, EnvVars vars){
+		ArrayList<String> args = new ArrayList<String>();
+
+		args.add(ibvcPath);
+		if(operation != null){
+		    args.add("--operation");
+			args.add(operation);
+		}
+		
+		if(ibvcConfig_.length() > 0){
+		    args.add("--ibvc-config");
+			args.add(vars.expand(ibvcConfig_));
+		}
+		
+		if( ibvcLic.length() > 0){
+			args.add("--lic-file");
+			args.add(ibvcLic);
+		}
+			
+		if( sfvcRevision_.length() > 0){
+			args.add("--sfvc-revision");
+			args.add(vars.expand(sfvcRevision_));
+		}
+		
+		if (checkout && ibvcCleanCheckout_){
+			args.add("--ibvc-clean-checkout");
+		}			
+		
+		args.addAll(extraArgs);
+		
+		if( addiotinalArguments_.length() > 0){
+			args.add(vars.expand(addiotinalArguments_));
+		}
+
+		if( parameters_ != null){
+			for( IbvcParameter p : parameters_){
+				args.add( "--param-" + vars.expand(p.getName()));
+				args.add( vars.expand(p.getValue()));
+			}
+		}
+		return args;
+	}
+
+	/**
+	 * Launch IBVC with parameters
+	 * IBVC out and err are streamed to console log
+	 * Exit code is parsed to check IBVC result
+	 * On successful exit, best-match IBVC and SFVC revisions are read from {@link IbvcResultFile} if the installation supports it,
+	 * or parsed from IBVC out.
+	 * <p>
+	 * When the target SFVC revision is in {@link IbvcRevisionIndex}, the indexed IBVC revision is checked out directly 
+	 * without searching for the best-match. If that fails, the index entry is dropped and IBVC searches as usual.
+	 * Otherwise, a fresh best-match found while the build was queued is checked out the same way, see {@link IbvcQueuedBestMatch}.
+	 * Launch is skipped, and the build's slot reservation dropped, if {@link IbvcWorkspaceMarker} shows the workspace is still at the indexed revision,
+	 * otherwise IBVC runs in a checkout slot of the configuration's {@link IbvcRepositoryPool}.
+	 * Checked out revisions are attached to the build as {@link IbvcBestMatchAction}.
+	 * 
+	 * @param operation IBVC operation, or null for IBVC's default checkout
+	 * @param deltaFile File on the node for IBVC to write the file delta to if the installation supports it, see {@link IbvcInstallation#isDeltaFile()}, or null
+	 * @return Checked out revisions, or null if IBVC didn't report them
+	 */
+	IbvcRevisionState checkout(String operation, Run<?,?> build, FilePath workspace, Launcher launcher, TaskListener listener, FilePath deltaFile) throws IOException, InterruptedException
+	{
+	    final EnvVars vars = build.getEnvironment(listener);
+	    
+    	// Detect IBVC installation and license file of the node
+	    Node node = Util.workspaceNode(workspace);
+	    IbvcInstallation ibvc = Util.nodeInstallation(node, listener);
+	    String phase = (operation != null) ? operation : "checkout";
+		String ibvcPath = vars.expand(ibvc.getExecutable());
+		listener.getLogger().println(String.format("%s: '%s'",Messages.IBVC_PATH(), ibvcPath));
+
+		String ibvcLic = vars.expand(ibvc.getLicensePath());
+	    listener.getLogger().println(String.format("%s: '%s'", Messages.IBVC_LICENSE(), ibvcLic));
+
+		// Nothing to launch if the workspace is still at the revision indexed for the target, as the last checkout left it
+		String scope = scope(build.getParent(), vars);
+		IbvcRepositoryPool slots = IbvcRepositoryPool.get(IbvcRepositoryPool.CHECKOUT, slotRepository(build.getParent(), build.getAction(ParametersAction.class)));
+		if (!ibvcCleanCheckout_){
+			String targetSfvcRev = targetSfvcRevision(vars);
+			String indexedIbvcRev = IbvcRevisionIndex.get().lookup(scope, targetSfvcRev);
+			if ((indexedIbvcRev != null) && IbvcWorkspaceMarker.matches(workspace, scope, indexedIbvcRev, targetSfvcRev)){
+				listener.getLogger().println(Messages.IBVC_workspace_unchanged(indexedIbvcRev, targetSfvcRev));
+				slots.unreserve(build.getQueueId());
+				IbvcRevisionState state = new IbvcRevisionState(indexedIbvcRev, targetSfvcRev);
+				checkedOut(build, scope, state, listener);
+				return state;
+			}
+		}
+		IbvcWorkspaceMarker.clear(workspace, scope);
+
+		ArrayList<String> extraArgs = new ArrayList<String>();
+		// Older IBVC versions reject the option, the change log stays empty then
+		if ((deltaFile != null) && ibvc.isDeltaFile()){
+			extraArgs.add("--delta-file");
+			extraArgs.add(deltaFile.getRemote());
+		}
+
+		// Concurrent checkouts of a repository are limited, see IbvcConcurrency
+		IbvcRepositoryPool.Permit permit = slots.acquire(build, (node != null) ? node.getNodeName() : "", listener.getLogger());
+		IbvcResultFile result = IbvcResultFile.create(ibvc, workspace);
+		try {
+			if (result != null){
+				result.addArgs(extraArgs);
+			}
+			IbvcRevisionState state = checkout(operation, phase, build, node, launcher, listener, vars, ibvcPath, ibvcLic, extraArgs, result);
+			permit.release();
+
+			// Remember the workspace for pre-warming, with a command line that never cleans it and searches the latest SFVC revision
+			if ((state != null) && (workspace != null)){
+				IbvcWorkspaceMarker.write(workspace, scope, state);
+				int files = IbvcManifest.snapshot(workspace, scope);
+				if (files >= 0){
+					listener.getLogger().println(Messages.IBVC_manifest(files));
+				}
+				int hashed = IbvcOutputHashes.record(workspace, scope, state, targetSfvcRevision(vars));
+				if (hashed >= 0){
+					listener.getLogger().println(Messages.IBVC_output_hashes(hashed));
+				}
+				IbvcNodeWorkspaces.forNode((node != null) ? node.getNodeName() : "").checkedOut(build.getParent().getFullName(), workspace.getRemote()
+						, scope, withoutSfvcRevision(args(ibvcPath, ibvcLic, "checkout-best-match", false, Collections.<String>emptyList(), vars)), state);
+			}
+			return state;
+		} finally {
+			permit.release();
+			if (result != null){
+				result.delete();
+			}
+		}
+	}
+
+	/**
+	 * Drop the build's target SFVC revision from a command line, so IBVC takes the latest one
+	 */
+	private static List<String> withoutSfvcRevision(List<String> args){
+		int i = args.indexOf("--sfvc-revision");
+		if ((i > 0) && (i + 1 < args.size())){
+			args.subList(i, i + 2).clear();
+		}
+		return args;
+	}
+
+	private IbvcRevisionState checkout(String operation, String phase, Run<?,?> build, Node node, Launcher launcher, TaskListener listener
+			, EnvVars vars, String ibvcPath, String ibvcLic, List<String> extraArgs, IbvcResultFile result) throws IOException, InterruptedException
+	{
+		IbvcRevisionIndex index = IbvcRevisionIndex.get();
+		String scope = scope(build.getParent(), vars);
+		String targetSfvcRev = targetSfvcRevision(vars);
+
+		// Revision known ahead: indexed for the target, or else the best-match found while the build was queued
+		IbvcRevisionState known;
+		String indexedIbvcRev = index.lookup(scope, targetSfvcRev);
+		if (indexedIbvcRev != null){
+			listener.getLogger().println(Messages.IBVC_indexed_revision(indexedIbvcRev, targetSfvcRev));
+			known = new IbvcRevisionState(indexedIbvcRev, targetSfvcRev);
+		}
+		else{
+			known = IbvcQueuedBestMatch.lookup(build, scope, targetSfvcRev, listener);
+		}
+
+		BestMatchOutputStream out = null;
+		if (known != null){
+			ArrayList<String> knownArgs = new ArrayList<String>(extraArgs);
+			knownArgs.add("--ibvc-revision");
+			knownArgs.add(known.getIbvcRevision());
+			out = new BestMatchOutputStream(listener.getLogger(), build.getCharset());
+			if (launch(build, phase, node, launcher, args(ibvcPath, ibvcLic, operation, true, knownArgs, vars), listener, out, result) != 0){
+				listener.getLogger().println(Messages.IBVC_known_revision_failed(known.getIbvcRevision()));
+				if (indexedIbvcRev != null){
+					index.remove(scope, targetSfvcRev);
+				}
+				known = null;
+				out = null;
+			}
+		}
+
+		if (out == null){
+			out = new BestMatchOutputStream(listener.getLogger(), build.getCharset());
+			int ibExitCode = launch(build, phase, node, launcher, args(ibvcPath, ibvcLic, operation, true, extraArgs, vars), listener, out, result);
+
+        	// Analyze exit code.
+			if (ibExitCode != 0){
+				build.setResult(Result.FAILURE);
+				throw new AbortException(Messages.IBVC_terminated_with_errors());
+			}
+		}
+        listener.getLogger().println( Messages.IBVC_finished_successfully());
+
+        // We get here after successful checkout. Best-match was read from the result file or detected while streaming IBVC output
+        IbvcRevisionState state = IbvcResultFile.revisions(result, out);
+        if (state == null){
+        	state = known;
+        }
+
+        if (state != null){
+        	checkedOut(build, scope, state, listener);
+        }
+        return state;
+	}
+
+	/**
+	 * Check out several configurations concurrently, at most <code>parallelism</code> at a time.
+	 * Each checkout logs to its own file, which is copied to the build log once all are done, so outputs don't interleave.
+	 * All checkouts run even if some fail; the build then fails listing every failed configuration.
+	 * <p>
+	 * The first checkout is the main one, whose revisions are set in the build environment.
+	 * 
+	 * @param names Display names of the checkouts, in the same order
+	 * @return Revisions of the main checkout, or null if IBVC didn't report them
+	 */
+	static IbvcRevisionState checkoutAll(final String operation, List<IbvcCheckout> checkouts, List<String> names, int parallelism
+			, final Run<?,?> build, final FilePath workspace, final Launcher launcher, TaskListener listener) throws IOException, InterruptedException
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(parallelism, 1)
+				, new NamingThreadFactory(new DaemonThreadFactory(), "IBVC checkout " + build.getFullDisplayName()));
+		List<File> logs = new ArrayList<File>();
+		List<Future<IbvcRevisionState>> futures = new ArrayList<Future<IbvcRevisionState>>();
+		try {
+			for (int i = 0; i < checkouts.size(); ++i){
+				final IbvcCheckout checkout = checkouts.get(i);
+				final File log = new File(build.getRootDir(), String.format("ibvc-checkout-%d.log", i));
+				logs.add(log);
+				futures.add(executor.submit(new Callable<IbvcRevisionState>() {
+					public IbvcRevisionState call() throws IOException, InterruptedException {
+						StreamTaskListener l = new StreamTaskListener(log, build.getCharset());
+						try {
+							return checkout.checkout(operation, build, workspace, launcher, l, null);
+						} finally {
+							l.close();
+						}
+					}
+				}));
+			}
+
+			IbvcRevisionState main = null;
+			List<String> failed = new ArrayList<String>();
+			for (int i = 0; i < futures.size(); ++i){
+				try {
+					IbvcRevisionState state = futures.get(i).get();
+					if (i == 0){
+						main = state;
+					}
+				} catch (ExecutionException e) {
+					failed.add(names.get(i));
+					if (!(e.getCause() instanceof AbortException)){
+						e.getCause().printStackTrace(listener.error(e.getCause().getMessage()));
+					}
+				}
+			}
+
+			for (int i = 0; i < logs.size(); ++i){
+				listener.getLogger().println(Messages.IBVC_config_log(names.get(i)));
+				if (logs.get(i).exists()){
+					IOUtils.copy(logs.get(i), listener.getLogger());
+				}
+			}
+
+			if (!failed.isEmpty()){
+				build.setResult(Result.FAILURE);
+				throw new AbortException(Messages.IBVC_configs_failed(failed));
+			}
+
+			// Checkouts replace each other's revisions on the build, the main checkout's are kept
+			if (main != null){
+				build.replaceAction(new IbvcBestMatchAction(main.getIbvcRevision(), main.getSfvcRevision()));
+			}
+			return main;
+		} finally {
+			executor.shutdownNow();
+			for (File log : logs){
+				log.delete();
+			}
+		}
+	}
+
+	/**
+	 * Index revisions and attach them to the build
+	 */
+	private static void checkedOut(Run<?,?> build, String scope, IbvcRevisionState state, TaskListener listener){
+    	IbvcRevisionIndex.get().put(scope, state.getSfvcRevision(), state.getIbvcRevision());
+    	build.replaceAction(new IbvcBestMatchAction(state.getIbvcRevision(), state.getSfvcRevision()));
+
+        listener.getLogger().println( String.format( 
+        		"Will write IBVC_BEST_MATCH_SFVC_REV='%s' and IBVC_BEST_MATCH_IBVC_REV='%s' to build environment"
+        		, state.getSfvcRevision()
+        		, state.getIbvcRevision()));
+	}
+
+	/**
+	 * Launch IBVC query-best-match operation, which reports the best-match line without checking out files.
+	 * 
+	 * @return Best-match revisions, or null if IBVC has no matching revision
+	 */
+	IbvcRevisionState query(Node node, Launcher launcher, TaskListener listener, EnvVars vars) throws IOException, InterruptedException
+	{
+	    IbvcInstallation ibvc = Util.nodeInstallation(node, listener);
+		String ibvcPath = vars.expand(ibvc.getExecutable());
+		String ibvcLic = vars.expand(ibvc.getLicensePath());
+
+        BestMatchOutputStream out = new BestMatchOutputStream(listener.getLogger());
+    	int ibExitCode = launch(null, null, node, launcher, args(ibvcPath, ibvcLic, "query-best-match", false, new ArrayList<String>(), vars), listener, out, null);
+    	if(ibExitCode != 0){
+			throw new AbortException(Messages.IBVC_terminated_with_errors());
+    	}
+
+    	if(out.getIbvcRevision() == null){
+    		return null;
+    	}
+    	return new IbvcRevisionState(out.getIbvcRevision(), out.getSfvcRevision());
+	}
+
+	/**
+	 * @param build Build that {@link IbvcTimingAction} records the process in, or null for polling
+	 * @param result Result file IBVC was told to write, read after it exits, or null
+	 */
+	private static int launch(Run<?,?> build, String phase, Node node, Launcher launcher, List<String> args, TaskListener listener, BestMatchOutputStream out, IbvcResultFile result) throws IOException, InterruptedException
+	{
+        try {
+        	long start = System.nanoTime();
+        	int ibExitCode = IbvcWorker.launch(Util.nodeInstallation(node, listener), launcher, args, out, listener.getLogger());
+        	out.close();
+        	if (result != null){
+        		result.read();
+        	}
+        	if (build != null){
+        		IbvcTimingAction.record(build, phase, (node != null) ? node.getNodeName() : "", start, out, ibExitCode, result);
+        	}
+        	return ibExitCode;
+
+		} catch (IOException e) {
+	        listener.getLogger().println( e.getMessage());
+			throw e;
+		} catch (InterruptedException e) {
+	        listener.getLogger().println( String.format( "%s: %s", Messages.IBVC_failed_to_finish_properly(), e.getMessage()));
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package jenkins.plugins.Ibvc;
+
+import hudson.Extension;
+import jenkins.model.GlobalConfiguration;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Global limits of concurrent IBVC operations per IBVC configuration, that is per repository,
+ * with separate pools for checkouts and checkins, see {@link IbvcRepositoryPool}.
+ * <p>
+ * Builds waiting for a checkout slot stay in the queue, see {@link IbvcConcurrencyDispatcher}.
+ */
+@Extension
+public class IbvcConcurrency extends GlobalConfiguration {
+
+	private int maxCheckouts_ = 0;
+	private int maxCheckins_ = 0;
+
+	public IbvcConcurrency(){
+		load();
+	}
+
+	public static IbvcConcurrency get(){
+		return GlobalConfiguration.all().get(IbvcConcurrency.class);
+	}
+
+	/**
+	 * Limit of the given pool
+	 *
+	 * @param operation {@link IbvcRepositoryPool#CHECKOUT} or {@link IbvcRepositoryPool#CHECKIN}
+	 * @return Maximal count of concurrent operations, 0 for no limit
+	 */
+	static int limit(String operation){
+		IbvcConcurrency c = get();
+		if (c == null){
+			return 0;
+		}
+		return IbvcRepositoryPool.CHECKOUT.equals(operation) ? c.getMaxCheckouts() : c.getMaxCheckins();
+	}
+
+	/**
+	 * Maximal count of concurrent checkouts per IBVC configuration, 0 for no limit
+	 */
+	public int getMaxCheckouts(){
+		return maxCheckouts_;
+	}
+	@DataBoundSetter
+	public void setMaxCheckouts(int maxCheckouts){
+		maxCheckouts_ = Math.max(maxCheckouts, 0);
+	}
+
+	/**
+	 * Maximal count of concurrent checkins per IBVC configuration, 0 for no limit
+	 */
+	public int getMaxCheckins(){
+		return maxCheckins_;
+	}
+	@DataBoundSetter
+	public void setMaxCheckins(int maxCheckins){
+		maxCheckins_ = Math.max(maxCheckins, 0);
+	}
+
+	@Override
+	public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+		req.bindJSON(this, json);
+		save();
+		IbvcRepositoryPool.limitsChanged();
+		return true;
+	}
+
+	@Override
+	public String getDisplayName(){
+		return Messages.IBVC_concurrency();
+	}
+}
@@ -0,0 +1,158 @@
+package jenkins.plugins.Ibvc;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueListener;
+import hudson.model.queue.QueueTaskDispatcher;
+import jenkins.model.Jenkins;
+
+/**
+ * Keeps builds in the queue while their IBVC configuration has no free checkout slot, see {@link IbvcConcurrency}.
+ * Blocked builds hold neither an executor nor a workspace.
+ * <p>
+ * Items handed to an executor count against the limit until they leave the queue, when they reserve a slot in {@link IbvcRepositoryPool}
+ * that their build's main checkout takes over.
+ * Only the main configuration of the IBVC SCM or build wrapper of freestyle-like jobs is known in the queue.
+ * The limit keys on that configuration expanded from the build parameters only, in the queue and in the build alike,
+ * see {@link IbvcCheckout#slotRepository}.
+ */
+@Extension
+public class IbvcConcurrencyDispatcher extends QueueTaskDispatcher {
+
+	// Guarded by this
+	private Pending pending_ = new Pending(Collections.<Long>emptySet());
+
+	/**
+	 * Items handed to an executor but still in the queue, counted by repository
+	 */
+	private static final class Pending {
+		final Set<Long> ids_;
+		final Map<Long, String> repositories_ = new HashMap<Long, String>();
+		final Map<String, Integer> counts_ = new HashMap<String, Integer>();
+
+		Pending(Set<Long> ids){
+			ids_ = ids;
+		}
+	}
+
+	@Override
+	public CauseOfBlockage canRun(Queue.Item item){
+		if (IbvcConcurrency.limit(IbvcRepositoryPool.CHECKOUT) <= 0){
+			return null;
+		}
+		String repository = repository(item);
+		if (repository == null){
+			return null;
+		}
+
+		// The queue checks each item once more right before handing it to an executor, so earlier items of the same pass are pending by then
+		Pending p = pending();
+		Integer count = p.counts_.get(repository);
+		int pending = (count != null) ? count : 0;
+		if (repository.equals(p.repositories_.get(item.getId()))){
+			--pending;
+		}
+		IbvcRepositoryPool pool = IbvcRepositoryPool.get(IbvcRepositoryPool.CHECKOUT, repository);
+		if (pool.hasRoom(item.getId(), pending)){
+			return null;
+		}
+		return new Busy(pool);
+	}
+
+	/**
+	 * Pending items by repository. Only recounted when the pending items changed, and each item's repository is only expanded once,
+	 * as this runs for every item of every queue pass.
+	 */
+	private synchronized Pending pending(){
+		Set<Long> ids = new HashSet<Long>();
+		List<Queue.BuildableItem> items = Jenkins.getInstance().getQueue().getPendingItems();
+		for (Queue.BuildableItem i : items){
+			ids.add(i.getId());
+		}
+		if (ids.equals(pending_.ids_)){
+			return pending_;
+		}
+
+		Pending p = new Pending(ids);
+		for (Queue.BuildableItem i : items){
+			String repository = pending_.repositories_.containsKey(i.getId()) ? pending_.repositories_.get(i.getId()) : repository(i);
+			p.repositories_.put(i.getId(), repository);
+			if (repository != null){
+				Integer count = p.counts_.get(repository);
+				p.counts_.put(repository, (count != null) ? count + 1 : 1);
+			}
+		}
+		pending_ = p;
+		return p;
+	}
+
+	/**
+	 * Repository of the item's main IBVC configuration, or null if it has none
+	 */
+	private static String repository(Queue.Item item){
+		IbvcCheckout checkout = IbvcQueuePrefetch.checkoutOf(item.task);
+		if (checkout == null){
+			return null;
+		}
+		return checkout.slotRepository((AbstractProject<?,?>)item.task, item.getAction(ParametersAction.class));
+	}
+
+	/**
+	 * All checkout slots of the configuration are taken
+	 */
+	private static final class Busy extends CauseOfBlockage {
+		private final IbvcRepositoryPool pool_;
+
+		Busy(IbvcRepositoryPool pool){
+			pool_ = pool;
+		}
+
+		@Override
+		public String getShortDescription(){
+			return Messages.IBVC_waiting_for_repository(pool_.getOperation(), pool_.getDisplayName(), pool_.occupancy(), pool_.getLimit());
+		}
+	}
+
+	/**
+	 * Reserves a slot for an item that leaves the queue to run, and drops the blocked time of any other item
+	 */
+	@Extension
+	public static final class QueueCleanup extends QueueListener {
+		@Override
+		public void onLeft(Queue.LeftItem li){
+			if (!(li.task instanceof AbstractProject)){
+				return;
+			}
+			String repository = (!li.isCancelled() && (IbvcConcurrency.limit(IbvcRepositoryPool.CHECKOUT) > 0)) ? repository(li) : null;
+			if (repository != null){
+				IbvcRepositoryPool.get(IbvcRepositoryPool.CHECKOUT, repository).reserve(li.getId());
+			}
+			else{
+				IbvcRepositoryPool.left(li.getId());
+			}
+		}
+	}
+
+	/**
+	 * Drops a reservation the build didn't take over, for example when it failed before checkout
+	 */
+	@Extension
+	public static final class RunCleanup extends RunListener<Run<?,?>> {
+		@Override
+		public void onCompleted(Run<?,?> r, TaskListener listener){
+			IbvcRepositoryPool.left(r.getQueueId());
+		}
+	}
+}
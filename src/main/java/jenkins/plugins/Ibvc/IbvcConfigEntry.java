@@ -0,0 +1,43 @@
+package jenkins.plugins.Ibvc;
+
+import java.io.File;
+import java.util.Collection;
+import org.kohsuke.stapler.DataBoundConstructor;
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+
+/**
+ * An IBVC configuration file with its own parameters, checked out alongside the build wrapper's main configuration.
+ */
+public class IbvcConfigEntry extends AbstractDescribableImpl<IbvcConfigEntry> {
+
+	private final String ibvcConfig_;
+	private final Collection<IbvcParameter> parameters_;
+
+	@DataBoundConstructor
+	public IbvcConfigEntry(String ibvcConfig, Collection<IbvcParameter> parameters){
+		ibvcConfig = Util.fixNull(ibvcConfig);
+		if(ibvcConfig.length() > 0){
+			ibvcConfig = new File(ibvcConfig).getPath();
+		}
+		ibvcConfig_ = ibvcConfig;
+		parameters_ = parameters;
+	}
+
+	public String getIbvcConfig(){
+		return ibvcConfig_;
+	}
+
+	public Collection<IbvcParameter> getParameters(){
+		return parameters_;
+	}
+
+	@Extension
+	public static final class DescriptorImpl extends Descriptor<IbvcConfigEntry> {
+		@Override
+		public String getDisplayName(){
+			return Messages.IBVC_config();
+		}
+	}
+}
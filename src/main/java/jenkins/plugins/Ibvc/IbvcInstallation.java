@@ -0,0 +1,126 @@
+package jenkins.plugins.Ibvc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.kohsuke.stapler.DataBoundConstructor;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.model.EnvironmentSpecific;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.NodeSpecific;
+import hudson.tools.ToolDescriptor;
+import hudson.tools.ToolInstallation;
+import hudson.tools.ToolProperty;
+
+/**
+ * IBVC installation, with optional license file.
+ * <p>
+ * Supports tool locations per node and auto-installers.
+ * {@link IbvcNodeProperties} of a node override the installation's home and license.
+ */
+public class IbvcInstallation extends ToolInstallation implements NodeSpecific<IbvcInstallation>, EnvironmentSpecific<IbvcInstallation> {
+
+	private static final long serialVersionUID = 1L;
+
+	static final String EXECUTABLE = "IBVC";
+
+	private final String license_;
+	private final boolean resultFile_;
+	private final boolean worker_;
+	private final boolean deltaFile_;
+
+	@DataBoundConstructor
+	public IbvcInstallation(String name, String home, String license, boolean resultFile, boolean worker, boolean deltaFile, List<? extends ToolProperty<?>> properties){
+		super(name, home, properties);
+		license_ = (license != null) ? license : "";
+		resultFile_ = resultFile;
+		worker_ = worker;
+		deltaFile_ = deltaFile;
+	}
+
+	public String getLicense(){
+		return license_;
+	}
+
+	/**
+	 * Whether this IBVC writes structured results with <code>--result-file</code>, see {@link IbvcResultFile}
+	 */
+	public boolean isResultFile(){
+		return resultFile_;
+	}
+
+	/**
+	 * Whether this IBVC can run as a long-lived worker with <code>--operation serve</code>, see {@link IbvcWorker}
+	 */
+	public boolean isWorker(){
+		return worker_;
+	}
+
+	/**
+	 * Whether this IBVC writes the file delta of a checkout with <code>--delta-file</code>, which becomes the build's change log
+	 */
+	public boolean isDeltaFile(){
+		return deltaFile_;
+	}
+
+	/**
+	 * IBVC executable path, or just the executable name to search the path when home is not set
+	 */
+	public String getExecutable(){
+		String home = getHome();
+		if((home == null) || (home.length() == 0)){
+			return EXECUTABLE;
+		}
+		return new File(home, EXECUTABLE).getPath();
+	}
+
+	/**
+	 * License file path, or an empty string if there is no license file
+	 */
+	public String getLicensePath(){
+		if(license_.length() == 0){
+			return license_;
+		}
+		return new File(license_).getPath();
+	}
+
+	public IbvcInstallation forNode(Node node, TaskListener log) throws IOException, InterruptedException {
+		return new IbvcInstallation(getName(), translateFor(node, log), license_, resultFile_, worker_, deltaFile_, getProperties().toList());
+	}
+
+	public IbvcInstallation forEnvironment(EnvVars environment){
+		return new IbvcInstallation(getName(), environment.expand(getHome()), environment.expand(license_), resultFile_, worker_, deltaFile_, getProperties().toList());
+	}
+
+	@Extension
+	public static final class DescriptorImpl extends ToolDescriptor<IbvcInstallation> {
+
+		private transient final AtomicLong version_ = new AtomicLong();
+
+		public DescriptorImpl(){
+			load();
+		}
+
+		@Override
+		public String getDisplayName(){
+			return Messages.IBVC();
+		}
+
+		@Override
+		public void setInstallations(IbvcInstallation... installations){
+			super.setInstallations(installations);
+			version_.incrementAndGet();
+			save();
+		}
+
+		/**
+		 * Incremented whenever installations are changed, to invalidate resolved installations
+		 */
+		long getVersion(){
+			return version_.get();
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package jenkins.plugins.Ibvc;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Job;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+import jenkins.model.Jenkins;
+
+/**
+ * Prefers nodes whose IBVC workspace of the job is already warm, as recorded in {@link IbvcNodeWorkspaces}.
+ * <p>
+ * Nodes rank by the job's workspace on them: at the job's latest checked out revision, at an older revision, or none.
+ * For {@link #GRACE_SECONDS} after an item becomes buildable, it is kept off nodes that rank below another idle node that can take it.
+ * After that any node may take it, so a busy warm node never holds the job back for long.
+ * Only jobs that check out with the IBVC SCM or build wrapper are considered, and the ranks of an item's nodes are computed
+ * once per queue maintenance.
+ */
+@Extension
+public class IbvcLocalityDispatcher extends QueueTaskDispatcher {
+
+	static final long GRACE_SECONDS = Long.getLong(IbvcLocalityDispatcher.class.getName() + ".graceSeconds", 30);
+
+	private static final int COLD = 0;
+	private static final int WARM = 1;
+	private static final int CURRENT = 2;
+
+	/**
+	 * How long ranks of an item are reused, enough for one queue maintenance
+	 */
+	static final long REFRESH_MILLIS = 1000;
+
+	// By queue item id
+	private final ConcurrentMap<Long, Warmth> warmth_ = new ConcurrentHashMap<Long, Warmth>();
+
+	@Override
+	public CauseOfBlockage canTake(Node node, Queue.BuildableItem item){
+		long now = System.currentTimeMillis();
+		if((GRACE_SECONDS <= 0) || (now - item.buildableStartMilliseconds > TimeUnit.SECONDS.toMillis(GRACE_SECONDS))){
+			return null;
+		}
+		if(IbvcQueuePrefetch.checkoutOf(item.task) == null){
+			return null;
+		}
+
+		Warmth warmth = warmth(item, now);
+		if(warmth == null){
+			return null;
+		}
+		Integer rank = warmth.ranks_.get(node.getNodeName());
+		if(rank == null){
+			rank = COLD;
+		}
+		if(rank == CURRENT){
+			return null;
+		}
+		for(Map.Entry<String, Integer> e : warmth.runnable_.entrySet()){
+			if(!e.getKey().equals(node.getNodeName()) && (e.getValue() > rank)){
+				return new WarmerNode(warmth.displayNames_.get(e.getKey()));
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Ranks of the nodes for an item, computed once per queue maintenance rather than for each node the item is offered to
+	 * 
+	 * @return Ranks, or null if the job has no IBVC workspace on any node
+	 */
+	private Warmth warmth(Queue.BuildableItem item, long now){
+		Warmth warmth = warmth_.get(item.getId());
+		if((warmth != null) && (now - warmth.computedAt_ < REFRESH_MILLIS)){
+			return warmth.ranks_.isEmpty() ? null : warmth;
+		}
+
+		long grace = TimeUnit.SECONDS.toMillis(GRACE_SECONDS);
+		for(Iterator<Warmth> i = warmth_.values().iterator(); i.hasNext();){
+			if(now - i.next().computedAt_ > grace){
+				i.remove();
+			}
+		}
+		warmth = compute(item, now);
+		warmth_.put(item.getId(), warmth);
+		return warmth.ranks_.isEmpty() ? null : warmth;
+	}
+
+	private static Warmth compute(Queue.BuildableItem item, long now){
+		Warmth warmth = new Warmth(now);
+		Queue.Task owner = item.task.getOwnerTask();
+		Jenkins j = Jenkins.getInstance();
+		if(!(owner instanceof Job) || (j == null)){
+			return warmth;
+		}
+		String jobName = ((Job<?,?>)owner).getFullName();
+
+		// Latest revision the job checked out on any node
+		Map<Computer, IbvcNodeWorkspaces.Workspace> workspaces = new LinkedHashMap<Computer, IbvcNodeWorkspaces.Workspace>();
+		IbvcNodeWorkspaces.Workspace latest = null;
+		for(Computer c : j.getComputers()){
+			Node n = c.getNode();
+			IbvcNodeWorkspaces.Workspace w = (n != null) ? IbvcNodeWorkspaces.forNode(n.getNodeName()).latest(jobName) : null;
+			if(w == null){
+				continue;
+			}
+			workspaces.put(c, w);
+			if((latest == null) || (w.getUsed() > latest.getUsed())){
+				latest = w;
+			}
+		}
+		if(latest == null){
+			return warmth;
+		}
+
+		for(Computer c : j.getComputers()){
+			Node n = c.getNode();
+			if(n == null){
+				continue;
+			}
+			int rank = rank(workspaces.get(c), latest.getRevision());
+			warmth.ranks_.put(n.getNodeName(), rank);
+			if((rank > COLD) && canRunNow(c, n, item)){
+				warmth.runnable_.put(n.getNodeName(), rank);
+				warmth.displayNames_.put(n.getNodeName(), c.getDisplayName());
+			}
+		}
+		return warmth;
+	}
+
+	private static int rank(IbvcNodeWorkspaces.Workspace w, IbvcRevisionState revision){
+		if(w == null){
+			return COLD;
+		}
+		if((revision != null) && revision.isSameRevision(w.getRevision())){
+			return CURRENT;
+		}
+		return WARM;
+	}
+
+	private static boolean canRunNow(Computer c, Node n, Queue.BuildableItem item){
+		if(!c.isOnline() || !c.isAcceptingTasks() || (c.countIdle() == 0)){
+			return false;
+		}
+		Label label = item.getAssignedLabel();
+		if((label == null) ? (n.getMode() != Node.Mode.NORMAL) : !label.contains(n)){
+			return false;
+		}
+		return n.canTake(item) == null;
+	}
+
+	/**
+	 * Ranks of the nodes for an item
+	 */
+	private static final class Warmth {
+		final long computedAt_;
+		// By node name
+		final Map<String, Integer> ranks_ = new HashMap<String, Integer>();
+		// Nodes with a workspace of the job that can take the item now
+		final Map<String, Integer> runnable_ = new LinkedHashMap<String, Integer>();
+		final Map<String, String> displayNames_ = new HashMap<String, String>();
+
+		Warmth(long computedAt){
+			computedAt_ = computedAt;
+		}
+	}
+
+	/**
+	 * Another idle node has a warmer IBVC workspace of the job
+	 */
+	private static final class WarmerNode extends CauseOfBlockage {
+		private final String nodeName_;
+
+		WarmerNode(String nodeName){
+			nodeName_ = nodeName;
+		}
+
+		@Override
+		public String getShortDescription(){
+			return Messages.IBVC_waiting_for_warm_node(nodeName_);
+		}
+	}
+}
@@ -0,0 +1,241 @@
+package jenkins.plugins.Ibvc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Snapshot of the workspace right after IBVC checkout: path, modification time and size of every file.
+ * At checkin, the workspace is compared to it and IBVC gets only the changed files with <code>--changed-files</code>,
+ * instead of scanning the whole tree.
+ * <p>
+ * Snapshots are only taken in workspaces where the last checkin of the scope asked for one, so the first such checkin is a full one
+ * and checkouts of workspaces whose checkin doesn't use changed files only never walk the tree.
+ * Both walks run on the node in a fork-join pool, one remote call each. Files are in <code>.ibvc</code>, which is not walked.
+ */
+class IbvcManifest {
+
+	private static final String IBVC_DIR = ".ibvc";
+
+	private static FilePath manifest(FilePath workspace, String scope){
+		return workspace.child(IBVC_DIR).child("manifest-" + hudson.Util.getDigestOf(scope) + ".gz");
+	}
+
+	private static FilePath wanted(FilePath workspace, String scope){
+		return workspace.child(IBVC_DIR).child("manifest-" + hudson.Util.getDigestOf(scope) + ".wanted");
+	}
+
+	/**
+	 * Snapshot the workspace after checkout, if a checkin of the same scope wants it
+	 * 
+	 * @return Count of files, or -1 if no snapshot was wanted
+	 */
+	static int snapshot(FilePath workspace, String scope) throws IOException, InterruptedException {
+		if((workspace == null) || !wanted(workspace, scope).exists()){
+			return -1;
+		}
+		return manifest(workspace, scope).act(new Snapshot());
+	}
+
+	/**
+	 * Write the files changed since the snapshot, one "A|M|D path" line each, like IBVC file delta.
+	 * Asks for a snapshot at the next checkout.
+	 * 
+	 * @return Changed file list, or null if there is no snapshot
+	 */
+	static FilePath changedFiles(FilePath workspace, String scope, TaskListener listener) throws IOException, InterruptedException {
+		FilePath wanted = wanted(workspace, scope);
+		wanted.getParent().mkdirs();
+		wanted.touch(System.currentTimeMillis());
+
+		FilePath manifest = manifest(workspace, scope);
+		if(!manifest.exists()){
+			listener.getLogger().println(Messages.IBVC_no_manifest());
+			return null;
+		}
+		FilePath changed = workspace.child(IBVC_DIR).child("changed-" + hudson.Util.getDigestOf(scope) + ".txt");
+		int count = manifest.act(new Diff(changed.getRemote()));
+		listener.getLogger().println(Messages.IBVC_changed_files(count));
+		return changed;
+	}
+
+	/**
+	 * Stop taking snapshots, when checkins no longer use them
+	 */
+	static void discard(FilePath workspace, String scope) throws IOException, InterruptedException {
+		manifest(workspace, scope).delete();
+		wanted(workspace, scope).delete();
+	}
+
+	private static final class Entry {
+		final long modified_;
+		final long size_;
+
+		Entry(long modified, long size){
+			modified_ = modified;
+			size_ = size;
+		}
+	}
+
+	/**
+	 * Walk a folder's subtree, forking a task per sub-folder
+	 */
+	private static final class Walk extends RecursiveTask<Map<String, Entry>> {
+		private static final long serialVersionUID = 1L;
+
+		private final File dir_;
+		private final String prefix_;
+
+		Walk(File dir, String prefix){
+			dir_ = dir;
+			prefix_ = prefix;
+		}
+
+		@Override
+		protected Map<String, Entry> compute(){
+			Map<String, Entry> entries = new HashMap<String, Entry>();
+			File[] children = dir_.listFiles();
+			if(children == null){
+				return entries;
+			}
+
+			List<Walk> subdirs = new ArrayList<Walk>();
+			for(File f : children){
+				String path = prefix_ + f.getName();
+				if(f.isDirectory()){
+					if((prefix_.length() == 0) && f.getName().equals(IBVC_DIR)){
+						continue;
+					}
+					if(Files.isSymbolicLink(f.toPath())){
+						continue;
+					}
+					subdirs.add(new Walk(f, path + "/"));
+				}
+				else{
+					entries.put(path, new Entry(f.lastModified(), f.length()));
+				}
+			}
+
+			invokeAll(subdirs);
+			for(Walk w : subdirs){
+				entries.putAll(w.join());
+			}
+			return entries;
+		}
+	}
+
+	private static Map<String, Entry> walk(File workspace){
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			return pool.invoke(new Walk(workspace, ""));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * @param manifest Manifest file, in the .ibvc folder of the workspace
+	 */
+	private static File workspaceOf(File manifest){
+		return manifest.getParentFile().getParentFile();
+	}
+
+	private static final class Snapshot extends MasterToSlaveFileCallable<Integer> {
+		private static final long serialVersionUID = 1L;
+
+		public Integer invoke(File manifest, VirtualChannel channel) throws IOException, InterruptedException {
+			Map<String, Entry> entries = walk(workspaceOf(manifest));
+			List<String> paths = new ArrayList<String>(entries.keySet());
+			Collections.sort(paths);
+
+			manifest.getParentFile().mkdirs();
+			DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(manifest))));
+			try {
+				for(String path : paths){
+					Entry e = entries.get(path);
+					out.writeUTF(path);
+					out.writeLong(e.modified_);
+					out.writeLong(e.size_);
+				}
+			} finally {
+				out.close();
+			}
+			return paths.size();
+		}
+	}
+
+	private static final class Diff extends MasterToSlaveFileCallable<Integer> {
+		private static final long serialVersionUID = 1L;
+
+		private final String changed_;
+
+		Diff(String changed){
+			changed_ = changed;
+		}
+
+		public Integer invoke(File manifest, VirtualChannel channel) throws IOException, InterruptedException {
+			Map<String, Entry> current = walk(workspaceOf(manifest));
+			int count = 0;
+
+			Writer out = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(changed_)), "UTF-8");
+			try {
+				DataInputStream in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(manifest))));
+				try {
+					while(true){
+						String path;
+						try {
+							path = in.readUTF();
+						} catch (EOFException e) {
+							break;
+						}
+						long modified = in.readLong();
+						long size = in.readLong();
+
+						Entry e = current.remove(path);
+						if(e == null){
+							out.write("D " + path + "\n");
+							++count;
+						}
+						else if((e.modified_ != modified) || (e.size_ != size)){
+							out.write("M " + path + "\n");
+							++count;
+						}
+					}
+				} finally {
+					in.close();
+				}
+
+				// Whatever is left was added after checkout
+				for(String path : current.keySet()){
+					out.write("A " + path + "\n");
+					++count;
+				}
+			} finally {
+				out.close();
+			}
+			return count;
+		}
+	}
+}
@@ -0,0 +1,328 @@
+package jenkins.plugins.Ibvc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.matrix.MatrixAggregatable;
+import hudson.matrix.MatrixAggregator;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixRun;
+import hudson.model.BuildListener;
+import hudson.model.InvisibleAction;
+import hudson.model.Node;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.IOUtils;
+import hudson.util.NamingThreadFactory;
+import hudson.util.StreamTaskListener;
+import jenkins.model.Jenkins;
+
+/**
+ * One IBVC checkin for all cells of a matrix build, so the repository gets a single transaction and a single, complete revision.
+ * <ol>
+ * <li>Each cell stages its checkin on its node with <code>--stage-dir</code>, without contacting the repository.</li>
+ * <li>When all cells are done, the parent build uploads the staged checkins into one IBVC transaction with <code>--transaction</code>,
+ * a bounded count at a time, each on its cell's node.</li>
+ * <li>If all uploads succeeded, the transaction is committed with <code>--operation commit</code> as one IBVC revision.</li>
+ * </ol>
+ * The committed revision is recorded in {@link IbvcRevisionIndex} for the configuration and parameters of every cell,
+ * and their {@link IbvcPurge} is scheduled.
+ * <p>
+ * matrix-project is an optional dependency: this class may only be used after {@link Util#isMatrixProjectInstalled()}.
+ */
+class IbvcMatrixCheckin {
+
+	/**
+	 * {@link IbvcPostBuildSave} with aggregation, which creates the {@link Aggregator} of matrix builds.
+	 * Saved as a plain {@link IbvcPostBuildSave}, so configurations still load once matrix-project is removed.
+	 */
+	public static final class Aggregating extends IbvcPostBuildSave implements MatrixAggregatable {
+		Aggregating(IbvcPostBuildSave p){
+			super(p.getIbvcConfig(), p.isRunAsync(), p.isCoalesce(), p.isKeep(), p.isPurgeOther(), p.getAddiotinalArguments(), p.getParameters()
+					, p.isOverrideIbvcScmConfig(), p.isChangedOnly(), p.isAggregate(), p.getUploadParallelism(), p.isSkipUnchanged(), p.getTrackedOutputs());
+		}
+
+		@Override
+		protected Object readResolve(){
+			return this;
+		}
+
+		/**
+		 * XStream marks the element to resolve to the plain publisher, which {@link IbvcPostBuildSave#readResolve()} wraps again on load
+		 */
+		private Object writeReplace(){
+			return new IbvcPostBuildSave(getIbvcConfig(), isRunAsync(), isCoalesce(), isKeep(), isPurgeOther(), getAddiotinalArguments(), getParameters()
+					, isOverrideIbvcScmConfig(), isChangedOnly(), isAggregate(), getUploadParallelism(), isSkipUnchanged(), getTrackedOutputs());
+		}
+
+		public MatrixAggregator createAggregator(MatrixBuild build, Launcher launcher, BuildListener listener){
+			return isAggregate() ? new Aggregator(build, launcher, listener, getUploadParallelism()) : null;
+		}
+	}
+
+	static IbvcPostBuildSave aggregating(IbvcPostBuildSave p){
+		return (p instanceof Aggregating) ? p : new Aggregating(p);
+	}
+
+	/**
+	 * Whether a build is a cell of a matrix build
+	 */
+	static boolean isCell(Run<?,?> build){
+		return build instanceof MatrixRun;
+	}
+
+	/**
+	 * Checkin staged by a matrix cell
+	 */
+	public static final class Staged extends InvisibleAction {
+		private final String nodeName_;
+		private final List<String> args_;
+		private final String ibvcPath_;
+		private final String ibvcLic_;
+		private final String repository_;
+		private final String stageDir_;
+		private final String scope_;
+		private final List<String> purgeArgs_;
+
+		Staged(String nodeName, List<String> args, String ibvcPath, String ibvcLic, String repository, String stageDir, String scope, List<String> purgeArgs){
+			nodeName_ = nodeName;
+			args_ = new ArrayList<String>(args);
+			ibvcPath_ = ibvcPath;
+			ibvcLic_ = ibvcLic;
+			repository_ = repository;
+			stageDir_ = stageDir;
+			scope_ = scope;
+			purgeArgs_ = (purgeArgs != null) ? new ArrayList<String>(purgeArgs) : null;
+		}
+	}
+
+	/**
+	 * Stage a cell's checkin on its node, to be checked in by {@link Aggregator}
+	 *
+	 * @param args IBVC checkin command line
+	 * @param repository IBVC repository, whose {@link IbvcRepositoryPool} checkin slots uploads and commit take
+	 * @param scope {@link IbvcRevisionIndex} scope of the cell
+	 * @param purgeArgs IBVC command line of the {@link IbvcPurge} scheduled once the cells are committed, or null
+	 */
+	static void stage(Run<?,?> build, FilePath workspace, Launcher launcher, IbvcInstallation ibvc, List<String> args, String ibvcPath, String ibvcLic, String repository, String scope, List<String> purgeArgs, TaskListener listener) throws IOException, InterruptedException {
+		Node node = Util.workspaceNode(workspace);
+		String nodeName = (node != null) ? node.getNodeName() : "";
+		// Per build, a previous build's stage may not be uploaded yet
+		FilePath stageDir = workspace.child(".ibvc").child("stage-" + hudson.Util.getDigestOf(scope) + "-" + build.getNumber());
+		stageDir.deleteRecursive();
+		stageDir.mkdirs();
+
+		List<String> stageArgs = new ArrayList<String>(args);
+		stageArgs.add("--stage-dir");
+		stageArgs.add(stageDir.getRemote());
+
+		BestMatchOutputStream out = new BestMatchOutputStream(listener.getLogger(), build.getCharset());
+		long start = System.nanoTime();
+		int exitCode = IbvcWorker.launch(ibvc, launcher, stageArgs, out, listener.getLogger());
+		out.close();
+		IbvcTimingAction.record(build, "stage", nodeName, start, out, exitCode, null);
+		if (exitCode != 0){
+			build.setResult(Result.FAILURE);
+			throw new AbortException(Messages.IBVC_terminated_with_errors());
+		}
+
+		listener.getLogger().println(Messages.IBVC_staged());
+		build.replaceAction(new Staged(nodeName, args, ibvcPath, ibvcLic, repository, stageDir.getRemote(), scope, purgeArgs));
+	}
+
+	static final class Aggregator extends MatrixAggregator {
+
+		private final int parallelism_;
+
+		/**
+		 * @param parallelism Maximal count of concurrent uploads, 0 for all at once
+		 */
+		Aggregator(MatrixBuild build, Launcher launcher, BuildListener listener, int parallelism){
+			super(build, launcher, listener);
+			parallelism_ = parallelism;
+		}
+
+		@Override
+		public boolean endBuild() throws InterruptedException, IOException {
+			List<MatrixRun> runs = new ArrayList<MatrixRun>();
+			List<Staged> staged = new ArrayList<Staged>();
+			for (MatrixRun r : build.getExactRuns()){
+				Staged s = r.getAction(Staged.class);
+				if (s != null){
+					runs.add(r);
+					staged.add(s);
+				}
+			}
+			if (staged.isEmpty()){
+				return true;
+			}
+
+			try {
+				// A partial checkin is what aggregation avoids
+				Result result = build.getResult();
+				if ((result != null) && result.isWorseThan(Result.SUCCESS)){
+					listener.getLogger().println(Messages.Skipping_IBVC_Save_on_failure());
+					return true;
+				}
+
+				String transaction = UUID.randomUUID().toString();
+				upload(runs, staged, transaction);
+				commit(staged, transaction);
+				return true;
+			} finally {
+				for (Staged s : staged){
+					discard(s);
+				}
+			}
+		}
+
+		private void upload(List<MatrixRun> runs, List<Staged> staged, final String transaction) throws IOException, InterruptedException {
+			int parallelism = (parallelism_ > 0) ? parallelism_ : staged.size();
+			ExecutorService executor = Executors.newFixedThreadPool(parallelism
+					, new NamingThreadFactory(new DaemonThreadFactory(), "IBVC upload " + build.getFullDisplayName()));
+			List<File> logs = new ArrayList<File>();
+			List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+			try {
+				listener.getLogger().println(Messages.IBVC_uploading(staged.size(), parallelism));
+				for (int i = 0; i < staged.size(); ++i){
+					final Staged s = staged.get(i);
+					final File log = new File(build.getRootDir(), String.format("ibvc-upload-%d.log", i));
+					logs.add(log);
+					futures.add(executor.submit(new Callable<Integer>() {
+						public Integer call() throws IOException, InterruptedException {
+							StreamTaskListener l = new StreamTaskListener(log, build.getCharset());
+							try {
+								List<String> args = new ArrayList<String>(s.args_);
+								args.add("--stage-dir");
+								args.add(s.stageDir_);
+								args.add("--transaction");
+								args.add(transaction);
+								return launch("upload", s.nodeName_, s.repository_, args, new BestMatchOutputStream(l.getLogger(), build.getCharset()), l);
+							} finally {
+								l.close();
+							}
+						}
+					}));
+				}
+
+				List<String> failed = new ArrayList<String>();
+				for (int i = 0; i < futures.size(); ++i){
+					try {
+						if (futures.get(i).get() != 0){
+							failed.add(runs.get(i).getParent().getName());
+						}
+					} catch (ExecutionException e) {
+						failed.add(runs.get(i).getParent().getName());
+						e.getCause().printStackTrace(listener.error(e.getCause().getMessage()));
+					}
+				}
+
+				for (int i = 0; i < logs.size(); ++i){
+					listener.getLogger().println(Messages.IBVC_upload_log(runs.get(i).getParent().getName()));
+					if (logs.get(i).exists()){
+						IOUtils.copy(logs.get(i), listener.getLogger());
+					}
+				}
+
+				if (!failed.isEmpty()){
+					build.setResult(Result.FAILURE);
+					throw new AbortException(Messages.IBVC_uploads_failed(failed));
+				}
+			} finally {
+				executor.shutdownNow();
+				for (File log : logs){
+					log.delete();
+				}
+			}
+		}
+
+		/**
+		 * Commit on the node of the first cell, with its IBVC
+		 */
+		private void commit(List<Staged> staged, String transaction) throws IOException, InterruptedException {
+			Staged first = staged.get(0);
+			List<String> args = new ArrayList<String>();
+			args.add(first.ibvcPath_);
+			args.add("--operation");
+			args.add("commit");
+			args.add("--transaction");
+			args.add(transaction);
+			if (first.ibvcLic_.length() > 0){
+				args.add("--lic-file");
+				args.add(first.ibvcLic_);
+			}
+
+			BestMatchOutputStream out = new BestMatchOutputStream(listener.getLogger(), build.getCharset(), BestMatchOutputStream.CHECKIN);
+			if (launch("commit", first.nodeName_, first.repository_, args, out, listener) != 0){
+				build.setResult(Result.FAILURE);
+				throw new AbortException(Messages.IBVC_terminated_with_errors());
+			}
+			listener.getLogger().println(Messages.IBVC_finished_successfully());
+
+			for (Staged s : staged){
+				if (out.getIbvcRevision() != null){
+					IbvcRevisionIndex.get().put(s.scope_, out.getSfvcRevision(), out.getIbvcRevision());
+				}
+				if (s.purgeArgs_ != null){
+					IbvcPurge.checkedIn(s.scope_, s.nodeName_, s.purgeArgs_);
+				}
+			}
+		}
+
+		/**
+		 * Each upload and the commit take a checkin slot of the configuration
+		 */
+		private int launch(String phase, String nodeName, String repository, List<String> args, BestMatchOutputStream out, TaskListener l) throws IOException, InterruptedException {
+			Node node = node(nodeName);
+			if (node == null){
+				throw new AbortException(Messages.IBVC_node_offline(nodeName));
+			}
+			IbvcRepositoryPool.Permit permit = IbvcRepositoryPool.get(IbvcRepositoryPool.CHECKIN, repository).acquire(build, nodeName, l.getLogger());
+			try {
+				long start = System.nanoTime();
+				int exitCode = IbvcWorker.launch(Util.nodeInstallation(node, l), node.createLauncher(l), args, out, l.getLogger());
+				out.close();
+				IbvcTimingAction.record(build, phase, nodeName, start, out, exitCode, null);
+				return exitCode;
+			} finally {
+				permit.release();
+			}
+		}
+
+		private void discard(Staged s){
+			try {
+				Node node = node(s.nodeName_);
+				FilePath dir = (node != null) ? node.createPath(s.stageDir_) : null;
+				if (dir != null){
+					dir.deleteRecursive();
+				}
+			} catch (Exception e) {
+				listener.getLogger().println(e.getMessage());
+			}
+		}
+
+		/**
+		 * @return Node if it is online, or null
+		 */
+		private static Node node(String nodeName){
+			Jenkins j = Jenkins.getInstance();
+			if (j == null){
+				return null;
+			}
+			Node node = (nodeName.length() > 0) ? j.getNode(nodeName) : j;
+			return ((node != null) && (node.toComputer() != null) && node.toComputer().isOnline()) ? node : null;
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package jenkins.plugins.Ibvc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import hudson.Extension;
+import hudson.model.Api;
+import hudson.model.Item;
+import hudson.model.RootAction;
+import hudson.model.listeners.ItemListener;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * IBVC process timings and the plugin's overhead around them, rolled up per job and per node as percentiles over the latest {@link #WINDOW} processes.
+ * Also exports the occupancy and wait times of {@link IbvcRepositoryPool}s.
+ * Served at <code>/ibvcMetrics/api/json</code> for administrators. Kept in memory only, so it restarts empty.
+ * Rollups of deleted, renamed or moved jobs are dropped.
+ */
+@Extension
+@ExportedBean
+public class IbvcMetrics implements RootAction {
+
+	static final int WINDOW = Integer.getInteger(IbvcMetrics.class.getName() + ".window", 500);
+
+	private final ConcurrentMap<String, Rollup> jobs_ = new ConcurrentHashMap<String, Rollup>();
+	private final ConcurrentMap<String, Rollup> nodes_ = new ConcurrentHashMap<String, Rollup>();
+
+	public static IbvcMetrics get(){
+		Jenkins j = Jenkins.getInstance();
+		IbvcMetrics m = (j != null) ? j.getExtensionList(RootAction.class).get(IbvcMetrics.class) : null;
+		return (m != null) ? m : new IbvcMetrics();
+	}
+
+	/**
+	 * Drop the rollups of a job, or of all jobs in a folder
+	 */
+	void forget(String fullName){
+		for(Iterator<Rollup> i = jobs_.values().iterator(); i.hasNext(); ){
+			String name = i.next().getName();
+			if(name.equals(fullName) || name.startsWith(fullName + "/")){
+				i.remove();
+			}
+		}
+	}
+
+	void record(String jobName, IbvcTimingAction.Phase p){
+		rollup(jobs_, jobName, p.getPhase()).add(p);
+		rollup(nodes_, p.getNodeName(), p.getPhase()).add(p);
+	}
+
+	private static Rollup rollup(ConcurrentMap<String, Rollup> map, String name, String phase){
+		String key = name + "\n" + phase;
+		Rollup r = map.get(key);
+		if(r == null){
+			Rollup tmp = new Rollup(name, phase);
+			r = map.putIfAbsent(key, tmp);
+			if(r == null){
+				r = tmp;
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Timings of one IBVC operation in one job or on one node.
+	 * Sample arrays grow with the samples, up to {@link #WINDOW}.
+	 */
+	@ExportedBean(defaultVisibility = 2)
+	public static final class Rollup {
+		private static final int INITIAL_SAMPLES = 16;
+
+		private final String name_;
+		private final String phase_;
+		private long[] runMillis_ = new long[0];
+		private long[] firstOutputMillis_ = new long[0];
+		private int next_ = 0;
+		private long count_ = 0;
+		private long failed_ = 0;
+		private long outputBytes_ = 0;
+
+		Rollup(String name, String phase){
+			name_ = name;
+			phase_ = phase;
+		}
+
+		synchronized void add(IbvcTimingAction.Phase p){
+			if(next_ == runMillis_.length){
+				int size = Math.min(Math.max(INITIAL_SAMPLES, 2 * runMillis_.length), WINDOW);
+				runMillis_ = Arrays.copyOf(runMillis_, size);
+				firstOutputMillis_ = Arrays.copyOf(firstOutputMillis_, size);
+			}
+			runMillis_[next_] = p.getRunMillis();
+			firstOutputMillis_[next_] = p.getFirstOutputMillis();
+			next_ = (next_ + 1) % WINDOW;
+			++count_;
+			if(p.getExitCode() != 0){
+				++failed_;
+			}
+			outputBytes_ += p.getOutputBytes();
+		}
+
+		private synchronized long percentile(long[] samples, double p){
+			int n = (int)Math.min(count_, WINDOW);
+			long[] sorted = new long[n];
+			int m = 0;
+			for(int i = 0; i < n; ++i){
+				// Processes that wrote nothing have no time to first output
+				if(samples[i] >= 0){
+					sorted[m++] = samples[i];
+				}
+			}
+			if(m == 0){
+				return -1;
+			}
+			Arrays.sort(sorted, 0, m);
+			int idx = (int)Math.ceil(p * m) - 1;
+			return sorted[Math.max(idx, 0)];
+		}
+
+		@Exported
+		public String getName(){
+			return name_;
+		}
+		@Exported
+		public String getPhase(){
+			return phase_;
+		}
+		@Exported
+		public synchronized long getCount(){
+			return count_;
+		}
+		@Exported
+		public synchronized long getFailed(){
+			return failed_;
+		}
+		@Exported
+		public synchronized long getOutputBytes(){
+			return outputBytes_;
+		}
+		@Exported
+		public synchronized long getRunMillisP50(){
+			return percentile(runMillis_, 0.5);
+		}
+		@Exported
+		public synchronized long getRunMillisP90(){
+			return percentile(runMillis_, 0.9);
+		}
+		@Exported
+		public synchronized long getRunMillisP99(){
+			return percentile(runMillis_, 0.99);
+		}
+		@Exported
+		public synchronized long getFirstOutputMillisP50(){
+			return percentile(firstOutputMillis_, 0.5);
+		}
+		@Exported
+		public synchronized long getFirstOutputMillisP90(){
+			return percentile(firstOutputMillis_, 0.9);
+		}
+	}
+
+	/**
+	 * Drops the rollups of deleted, renamed and moved jobs
+	 */
+	@Extension
+	public static final class JobCleanup extends ItemListener {
+		@Override
+		public void onDeleted(Item item){
+			get().forget(item.getFullName());
+		}
+
+		@Override
+		public void onLocationChanged(Item item, String oldFullName, String newFullName){
+			get().forget(oldFullName);
+		}
+	}
+
+	@Exported(inline = true)
+	public List<Rollup> getJobs(){
+		return new ArrayList<Rollup>(jobs_.values());
+	}
+
+	@Exported(inline = true)
+	public List<Rollup> getNodes(){
+		return new ArrayList<Rollup>(nodes_.values());
+	}
+
+	@Exported(inline = true)
+	public List<IbvcRepositoryPool> getRepositories(){
+		return IbvcRepositoryPool.all();
+	}
+
+	public Api getApi(){
+		Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+		return new Api(this);
+	}
+
+	public String getIconFileName(){
+		return null;
+	}
+
+	public String getDisplayName(){
+		return Messages.IBVC_metrics();
+	}
+
+	public String getUrlName(){
+		return "ibvcMetrics";
+	}
+}
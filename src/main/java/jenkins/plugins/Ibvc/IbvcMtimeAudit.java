@@ -0,0 +1,312 @@
+package jenkins.plugins.Ibvc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.kohsuke.stapler.DataBoundConstructor;
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Check after checkout that restored intermediates are newer than their sources, so the incremental build won't rebuild them.
+ * <p>
+ * Sources of an intermediate are taken from the make dependency files the build records, such as <code>gcc -MD</code> output.
+ * Dependency files are parsed and file times read on the node, in one remote call using all processors.
+ * Stale intermediates are listed in {@link IbvcMtimeAuditAction}, and optionally fail the build.
+ */
+public class IbvcMtimeAudit extends AbstractDescribableImpl<IbvcMtimeAudit> {
+
+	/**
+	 * Stale intermediates kept for the build action, the rest are only counted
+	 */
+	static final int MAX_REPORTED = 200;
+
+	/**
+	 * Stale intermediates printed to the build log
+	 */
+	private static final int MAX_LOGGED = 10;
+
+	private final String dependencyFiles_;
+	private final boolean failOnStale_;
+
+	@DataBoundConstructor
+	public IbvcMtimeAudit(String dependencyFiles, boolean failOnStale){
+		dependencyFiles = Util.fixNull(dependencyFiles).trim();
+		dependencyFiles_ = (dependencyFiles.length() > 0) ? dependencyFiles : "**/*.d";
+		failOnStale_ = failOnStale;
+	}
+
+	/**
+	 * Ant pattern of make dependency files, relative to the workspace
+	 */
+	public String getDependencyFiles(){
+		return dependencyFiles_;
+	}
+
+	public boolean isFailOnStale(){
+		return failOnStale_;
+	}
+
+	/**
+	 * Audit the workspace after a successful checkout
+	 */
+	void audit(Run<?,?> build, FilePath workspace, TaskListener listener) throws IOException, InterruptedException {
+		if (workspace == null){
+			return;
+		}
+		long start = System.nanoTime();
+		Report report = workspace.act(new Audit(build.getEnvironment(listener).expand(dependencyFiles_)));
+		listener.getLogger().println(Messages.IBVC_mtime_audit(report.dependencyFiles_, report.targets_, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+		if (report.staleCount_ == 0){
+			return;
+		}
+
+		for (Stale s : report.stale_.subList(0, Math.min(report.stale_.size(), MAX_LOGGED))){
+			listener.getLogger().println(Messages.IBVC_mtime_audit_stale(s.getTarget(), s.getSource()));
+		}
+		build.replaceAction(new IbvcMtimeAuditAction(report.staleCount_, report.stale_));
+		if (failOnStale_){
+			build.setResult(Result.FAILURE);
+			throw new AbortException(Messages.IBVC_mtime_audit_failed(report.staleCount_));
+		}
+		listener.getLogger().println(Messages.IBVC_mtime_audit_warning(report.staleCount_));
+	}
+
+	/**
+	 * An intermediate older than one of its sources
+	 */
+	public static final class Stale implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final String target_;
+		private final String source_;
+		private final long targetModified_;
+		private final long sourceModified_;
+
+		Stale(String target, String source, long targetModified, long sourceModified){
+			target_ = target;
+			source_ = source;
+			targetModified_ = targetModified;
+			sourceModified_ = sourceModified;
+		}
+
+		public String getTarget(){
+			return target_;
+		}
+		public String getSource(){
+			return source_;
+		}
+		public long getTargetModified(){
+			return targetModified_;
+		}
+		public long getSourceModified(){
+			return sourceModified_;
+		}
+		public Date getTargetDate(){
+			return new Date(targetModified_);
+		}
+		public Date getSourceDate(){
+			return new Date(sourceModified_);
+		}
+	}
+
+	private static final class Report implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		int dependencyFiles_;
+		int targets_;
+		int staleCount_;
+		final List<Stale> stale_ = new ArrayList<Stale>();
+	}
+
+	private static final class Audit extends MasterToSlaveFileCallable<Report> {
+		private static final long serialVersionUID = 1L;
+
+		private final String includes_;
+
+		Audit(String includes){
+			includes_ = includes;
+		}
+
+		public Report invoke(final File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+			String[] depFiles = hudson.Util.createFileSet(workspace, includes_, ".ibvc/**").getDirectoryScanner().getIncludedFiles();
+
+			// Headers are shared by many targets, each file is only stat'ed once
+			final ConcurrentMap<File, Long> modified = new ConcurrentHashMap<File, Long>();
+			final AtomicInteger targets = new AtomicInteger();
+			final AtomicInteger staleCount = new AtomicInteger();
+			final List<Stale> stale = new ArrayList<Stale>();
+
+			ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+			try {
+				List<Future<?>> futures = new ArrayList<Future<?>>();
+				for (final String depFile : depFiles){
+					futures.add(executor.submit(new Callable<Void>() {
+						public Void call() throws IOException {
+							File f = new File(workspace, depFile);
+							for (Rule rule : Rule.parse(new String(Files.readAllBytes(f.toPath()), Charset.defaultCharset()))){
+								for (String target : rule.targets_){
+									File t = resolve(modified, workspace, f, target);
+									long tm = modified(modified, t);
+									if (tm == 0){
+										continue;
+									}
+									targets.incrementAndGet();
+									for (String source : rule.sources_){
+										long sm = modified(modified, resolve(modified, workspace, f, source));
+										if (sm > tm){
+											staleCount.incrementAndGet();
+											synchronized (stale){
+												if (stale.size() < MAX_REPORTED){
+													stale.add(new Stale(target, source, tm, sm));
+												}
+											}
+										}
+									}
+								}
+							}
+							return null;
+						}
+					}));
+				}
+				for (Future<?> future : futures){
+					future.get();
+				}
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause());
+			} finally {
+				executor.shutdownNow();
+			}
+
+			Report report = new Report();
+			report.dependencyFiles_ = depFiles.length;
+			report.targets_ = targets.get();
+			report.staleCount_ = staleCount.get();
+			report.stale_.addAll(stale);
+			return report;
+		}
+
+		/**
+		 * Build tools write paths relative to the folder they ran in: the workspace, or else the dependency file's folder.
+		 * Whether the file exists in the workspace comes from the modification time cache, so it isn't stat'ed again.
+		 */
+		private static File resolve(ConcurrentMap<File, Long> cache, File workspace, File depFile, String path){
+			File f = new File(path);
+			if (f.isAbsolute()){
+				return f;
+			}
+			f = new File(workspace, path);
+			return (modified(cache, f) != 0) ? f : new File(depFile.getParentFile(), path);
+		}
+
+		/**
+		 * @return Modification time, 0 if the file doesn't exist
+		 */
+		private static long modified(ConcurrentMap<File, Long> cache, File f){
+			Long m = cache.get(f);
+			if (m == null){
+				m = f.lastModified();
+				cache.putIfAbsent(f, m);
+			}
+			return m;
+		}
+	}
+
+	/**
+	 * A make rule: targets, a colon and their prerequisites
+	 */
+	static final class Rule {
+		final List<String> targets_ = new ArrayList<String>();
+		final List<String> sources_ = new ArrayList<String>();
+
+		/**
+		 * Parse make dependency file content.
+		 * Handles line continuations, escaped spaces and <code>$$</code>, and drive letters in Windows paths.
+		 */
+		static List<Rule> parse(String content){
+			List<Rule> rules = new ArrayList<Rule>();
+			for (String line : content.replace("\\\r\n", " ").replace("\\\n", " ").split("\r?\n")){
+				int colon = ruleColon(line);
+				if (colon < 0){
+					continue;
+				}
+				Rule rule = new Rule();
+				split(line.substring(0, colon), rule.targets_);
+				split(line.substring(colon + 1), rule.sources_);
+				if (!rule.targets_.isEmpty() && !rule.sources_.isEmpty()){
+					rules.add(rule);
+				}
+			}
+			return rules;
+		}
+
+		/**
+		 * The colon after the targets is followed by a space or ends the line, unlike a drive letter's
+		 */
+		private static int ruleColon(String line){
+			for (int i = line.indexOf(':'); i >= 0; i = line.indexOf(':', i + 1)){
+				if ((i + 1 == line.length()) || Character.isWhitespace(line.charAt(i + 1))){
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		private static void split(String s, List<String> paths){
+			StringBuilder path = new StringBuilder();
+			for (int i = 0; i < s.length(); ++i){
+				char c = s.charAt(i);
+				if ((c == '\\') && (i + 1 < s.length()) && (s.charAt(i + 1) == ' ')){
+					path.append(' ');
+					++i;
+				}
+				else if ((c == '$') && (i + 1 < s.length()) && (s.charAt(i + 1) == '$')){
+					path.append('$');
+					++i;
+				}
+				else if (Character.isWhitespace(c)){
+					if (path.length() > 0){
+						paths.add(path.toString());
+						path.setLength(0);
+					}
+				}
+				else{
+					path.append(c);
+				}
+			}
+			if (path.length() > 0){
+				paths.add(path.toString());
+			}
+		}
+	}
+
+	@Extension
+	public static final class DescriptorImpl extends Descriptor<IbvcMtimeAudit> {
+		@Override
+		public String getDisplayName(){
+			return Messages.IBVC_mtime_audit_name();
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package jenkins.plugins.Ibvc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Intermediates that {@link IbvcMtimeAudit} found older than their sources after checkout.
+ * Only the first {@link IbvcMtimeAudit#MAX_REPORTED} are listed.
+ */
+@ExportedBean
+public class IbvcMtimeAuditAction implements RunAction2 {
+
+	private final int staleCount_;
+	private final List<IbvcMtimeAudit.Stale> stale_;
+
+	private transient Run<?,?> run_;
+
+	IbvcMtimeAuditAction(int staleCount, List<IbvcMtimeAudit.Stale> stale){
+		staleCount_ = staleCount;
+		stale_ = new ArrayList<IbvcMtimeAudit.Stale>(stale);
+	}
+
+	/**
+	 * All stale intermediate and source pairs, including those not listed
+	 */
+	@Exported
+	public int getStaleCount(){
+		return staleCount_;
+	}
+
+	public List<IbvcMtimeAudit.Stale> getStale(){
+		return Collections.unmodifiableList(stale_);
+	}
+
+	public Run<?,?> getRun(){
+		return run_;
+	}
+
+	public void onAttached(Run<?,?> r){
+		run_ = r;
+	}
+
+	public void onLoad(Run<?,?> r){
+		run_ = r;
+	}
+
+	public String getIconFileName(){
+		return "warning.png";
+	}
+
+	public String getDisplayName(){
+		return Messages.IBVC_mtime_audit_action();
+	}
+
+	public String getUrlName(){
+		return "ibvcMtimeAudit";
+	}
+}
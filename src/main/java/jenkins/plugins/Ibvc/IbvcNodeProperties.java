@@ -12,12 +12,21 @@ public class IbvcNodeProperties extends NodeProperty<Node>{
 
 	private final String _home;
 	private final String _license;
+	private final int _asyncCheckinLimit;
+	private final int _asyncCheckinQueueSize;
+	private final boolean _prewarm;
+
+	public static final int DEFAULT_ASYNC_CHECKIN_LIMIT = 2;
+	public static final int DEFAULT_ASYNC_CHECKIN_QUEUE_SIZE = 8;
 
     @DataBoundConstructor
-    public IbvcNodeProperties(String home, String license) {
+    public IbvcNodeProperties(String home, String license, int asyncCheckinLimit, int asyncCheckinQueueSize, boolean prewarm) {
 		
 		_home = home;
 		_license = license;
+		_asyncCheckinLimit = asyncCheckinLimit;
+		_asyncCheckinQueueSize = asyncCheckinQueueSize;
+		_prewarm = prewarm;
     }
 	
 	public String getHome(){
@@ -27,6 +36,28 @@ public class IbvcNodeProperties extends NodeProperty<Node>{
 	public String getLicense(){
 		return _license;
 	}
+	
+	/**
+	 * Maximal count of asynchronous IBVC checkins running concurrently on the node
+	 */
+	public int getAsyncCheckinLimit(){
+		return (_asyncCheckinLimit > 0) ? _asyncCheckinLimit : DEFAULT_ASYNC_CHECKIN_LIMIT;
+	}
+	
+	/**
+	 * Maximal count of asynchronous IBVC checkins waiting to run on the node. 
+	 * Builds wait for a free queue slot when the queue is full
+	 */
+	public int getAsyncCheckinQueueSize(){
+		return (_asyncCheckinQueueSize > 0) ? _asyncCheckinQueueSize : DEFAULT_ASYNC_CHECKIN_QUEUE_SIZE;
+	}
+	
+	/**
+	 * Whether {@link IbvcPrewarm} updates the node's recent IBVC workspaces while it is idle
+	 */
+	public boolean isPrewarm(){
+		return _prewarm;
+	}
 
     @Override
     public DescriptorImpl getDescriptor() {
@@ -55,4 +86,4 @@ public class IbvcNodeProperties extends NodeProperty<Node>{
             return p;
         }
    }
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,143 @@
+package jenkins.plugins.Ibvc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * IBVC workspaces recently checked out on each node, with the IBVC command that checked them out and the revision they hold.
+ * Kept in memory only, at most {@link #MAX_WORKSPACES} per node.
+ */
+public class IbvcNodeWorkspaces {
+
+	static final int MAX_WORKSPACES = Integer.getInteger(IbvcNodeWorkspaces.class.getName() + ".maxWorkspaces", 20);
+	static final long MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(Integer.getInteger(IbvcNodeWorkspaces.class.getName() + ".maxAgeHours", 24));
+
+	private static final ConcurrentMap<String, IbvcNodeWorkspaces> nodes_ = new ConcurrentHashMap<String, IbvcNodeWorkspaces>();
+
+	/**
+	 * One workspace on the node
+	 */
+	public static final class Workspace {
+		private final String jobName_;
+		private final String path_;
+		private final String scope_;
+		private final List<String> args_;
+		private volatile IbvcRevisionState revision_;
+		private volatile long used_;
+
+		Workspace(String jobName, String path, String scope, List<String> args, IbvcRevisionState revision){
+			jobName_ = jobName;
+			path_ = path;
+			scope_ = scope;
+			args_ = Collections.unmodifiableList(new ArrayList<String>(args));
+			revision_ = revision;
+			used_ = System.currentTimeMillis();
+		}
+
+		public String getJobName(){
+			return jobName_;
+		}
+		public String getPath(){
+			return path_;
+		}
+		public String getScope(){
+			return scope_;
+		}
+		/**
+		 * Expanded IBVC checkout-best-match command line, without build specific arguments
+		 */
+		public List<String> getArgs(){
+			return args_;
+		}
+		public IbvcRevisionState getRevision(){
+			return revision_;
+		}
+		public long getUsed(){
+			return used_;
+		}
+	}
+
+	// Access ordered, least recently checked out first. Keyed by path and scope
+	private final LinkedHashMap<String, Workspace> workspaces_ = new LinkedHashMap<String, Workspace>(16, 0.75f, true);
+
+	public static IbvcNodeWorkspaces forNode(String nodeName){
+		IbvcNodeWorkspaces w = nodes_.get(nodeName);
+		if(w == null){
+			IbvcNodeWorkspaces tmp = new IbvcNodeWorkspaces();
+			w = nodes_.putIfAbsent(nodeName, tmp);
+			if(w == null){
+				w = tmp;
+			}
+		}
+		return w;
+	}
+
+	/**
+	 * A build checked out a workspace
+	 */
+	synchronized void checkedOut(String jobName, String path, String scope, List<String> args, IbvcRevisionState revision){
+		workspaces_.put(key(path, scope), new Workspace(jobName, path, scope, args, revision));
+		while(workspaces_.size() > MAX_WORKSPACES){
+			Iterator<Workspace> i = workspaces_.values().iterator();
+			i.next();
+			i.remove();
+		}
+	}
+
+	/**
+	 * A workspace was updated without a build, e.g. by {@link IbvcPrewarm}
+	 */
+	void updated(Workspace w, IbvcRevisionState revision){
+		w.revision_ = revision;
+	}
+
+	/**
+	 * Most recently checked out workspace of a job on the node, or null
+	 */
+	synchronized Workspace latest(String jobName){
+		Workspace latest = null;
+		for(Workspace w : workspaces_.values()){
+			if(w.jobName_.equals(jobName) && ((latest == null) || (w.used_ >= latest.used_))){
+				latest = w;
+			}
+		}
+		return latest;
+	}
+
+	synchronized void remove(Workspace w){
+		workspaces_.remove(key(w.path_, w.scope_));
+	}
+
+	/**
+	 * A workspace may be checked out with several IBVC configurations
+	 */
+	private static String key(String path, String scope){
+		return path + "\n" + scope;
+	}
+
+	/**
+	 * Workspaces checked out within {@link #MAX_AGE_MILLIS}, most recent first
+	 */
+	public synchronized List<Workspace> getRecent(){
+		long now = System.currentTimeMillis();
+		List<Workspace> recent = new ArrayList<Workspace>();
+		for(Iterator<Map.Entry<String, Workspace>> i = workspaces_.entrySet().iterator(); i.hasNext();){
+			Workspace w = i.next().getValue();
+			if(now - w.used_ > MAX_AGE_MILLIS){
+				i.remove();
+			}
+			else{
+				recent.add(w);
+			}
+		}
+		Collections.reverse(recent);
+		return recent;
+	}
+}
@@ -0,0 +1,359 @@
+package jenkins.plugins.Ibvc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Content hashes of the tracked outputs right after IBVC checkout, with the checked out revisions.
+ * At checkin, outputs are hashed again; if they are identical to the checked out revision, the checkin is skipped
+ * and the build's SFVC revision is indexed as an alias of the checked out IBVC revision in {@link IbvcRevisionIndex}.
+ * <p>
+ * Like {@link IbvcManifest}, hashes are only recorded in workspaces where a checkin asked for them, and the first such checkin is a full one.
+ * Only an explicit tracked outputs pattern is hashed, never the whole workspace.
+ * Files are hashed on the node by {@link #THREADS} threads, streamed through a direct buffer per thread rather than memory mapped,
+ * which would keep them locked on Windows.
+ * At checkin, a changed file list or size is detected before hashing anything.
+ */
+class IbvcOutputHashes {
+
+	private static final String IBVC_DIR = ".ibvc";
+	private static final String ALGORITHM = "SHA-256";
+
+	private static final int BUFFER_SIZE = 256 * 1024;
+
+	/**
+	 * Reused by the hashing threads of one scan
+	 */
+	private static final ThreadLocal<ByteBuffer> buffer_ = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue(){
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+	};
+
+	static final int THREADS = Integer.getInteger(IbvcOutputHashes.class.getName() + ".threads", Runtime.getRuntime().availableProcessors());
+
+	private static FilePath hashes(FilePath workspace, String scope){
+		return workspace.child(IBVC_DIR).child("outputs-" + hudson.Util.getDigestOf(scope) + ".gz");
+	}
+
+	/**
+	 * Holds the tracked outputs pattern a checkin asked for
+	 */
+	private static FilePath wanted(FilePath workspace, String scope){
+		return workspace.child(IBVC_DIR).child("outputs-" + hudson.Util.getDigestOf(scope) + ".wanted");
+	}
+
+	/**
+	 * Hash the tracked outputs after checkout, if a checkin of the same scope wants it
+	 *
+	 * @param state Checked out revisions
+	 * @param targetSfvcRevision SFVC revision the build is at
+	 * @return Count of hashed files, or -1 if no hashes were wanted or no tracked outputs are set
+	 */
+	static int record(FilePath workspace, String scope, IbvcRevisionState state, String targetSfvcRevision) throws IOException, InterruptedException {
+		if(workspace == null){
+			return -1;
+		}
+		String includes;
+		FilePath wanted = wanted(workspace, scope);
+		FilePath hashes = hashes(workspace, scope);
+		if(wanted.exists()){
+			includes = wanted.readToString();
+		}
+		else if(hashes.exists()){
+			includes = hashes.act(new ReadIncludes());
+		}
+		else{
+			return -1;
+		}
+		if(includes.trim().length() == 0){
+			return -1;
+		}
+		return hashes.act(new Record(includes, state.getIbvcRevision(), Util.fixNull(targetSfvcRevision)));
+	}
+
+	/**
+	 * Compare the tracked outputs with the hashes recorded at checkout.
+	 * If there are none, or for other tracked outputs, ask for them at the next checkout.
+	 *
+	 * @param includes Tracked outputs, a non-empty Ant pattern relative to the workspace
+	 * @return Checked out IBVC revision and SFVC revision of the build if the outputs are identical and there are some, otherwise null
+	 */
+	static IbvcRevisionState unchanged(FilePath workspace, String scope, String includes, TaskListener listener) throws IOException, InterruptedException {
+		FilePath hashes = hashes(workspace, scope);
+		if(!hashes.exists() || !includes.equals(hashes.act(new ReadIncludes()))){
+			listener.getLogger().println(Messages.IBVC_no_output_hashes());
+			FilePath wanted = wanted(workspace, scope);
+			wanted.getParent().mkdirs();
+			wanted.write(includes, "UTF-8");
+			return null;
+		}
+
+		// A pattern that matches nothing would stop every checkin
+		Comparison c = hashes.act(new Compare());
+		if(c.files_ == 0){
+			listener.getLogger().println(Messages.IBVC_no_outputs_matched(includes));
+			return null;
+		}
+		if(c.changed_ != null){
+			listener.getLogger().println(Messages.IBVC_outputs_changed(c.changed_));
+			return null;
+		}
+		listener.getLogger().println(Messages.IBVC_outputs_unchanged(c.files_, c.ibvcRevision_));
+		return new IbvcRevisionState(c.ibvcRevision_, c.sfvcRevision_);
+	}
+
+	/**
+	 * Stop recording hashes, when checkins no longer use them
+	 */
+	static void discard(FilePath workspace, String scope) throws IOException, InterruptedException {
+		hashes(workspace, scope).delete();
+		wanted(workspace, scope).delete();
+	}
+
+	/**
+	 * @param hashes Hashes file, in the .ibvc folder of the workspace
+	 */
+	private static File workspaceOf(File hashes){
+		return hashes.getParentFile().getParentFile();
+	}
+
+	/**
+	 * Tracked outputs in the workspace with their sizes, by path
+	 */
+	private static Map<String, Long> scan(File workspace, String includes){
+		Map<String, Long> sizes = new TreeMap<String, Long>();
+		for(String path : hudson.Util.createFileSet(workspace, includes, IBVC_DIR + "/**").getDirectoryScanner().getIncludedFiles()){
+			path = path.replace(File.separatorChar, '/');
+			sizes.put(path, new File(workspace, path).length());
+		}
+		return sizes;
+	}
+
+	/**
+	 * Hash files in parallel. With a reference, stops at the first file whose hash differs.
+	 *
+	 * @param reference Expected hashes by path, or null
+	 * @param changed Gets the path of the first differing file
+	 * @return Hashes by path, or null if a file differs
+	 */
+	private static Map<String, byte[]> hash(final File workspace, List<String> paths, final Map<String, byte[]> reference, String[] changed) throws IOException, InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(THREADS, 1)
+				, new NamingThreadFactory(new DaemonThreadFactory(), "IBVC output hashes"));
+		try {
+			Map<String, Future<byte[]>> futures = new HashMap<String, Future<byte[]>>();
+			for(final String path : paths){
+				futures.put(path, executor.submit(new Callable<byte[]>() {
+					public byte[] call() throws IOException {
+						return hash(new File(workspace, path));
+					}
+				}));
+			}
+
+			Map<String, byte[]> hashes = new TreeMap<String, byte[]>();
+			for(String path : paths){
+				byte[] h;
+				try {
+					h = futures.get(path).get();
+				} catch (ExecutionException e) {
+					throw new IOException(e.getCause());
+				}
+				if((reference != null) && !Arrays.equals(h, reference.get(path))){
+					changed[0] = path;
+					return null;
+				}
+				hashes.put(path, h);
+			}
+			return hashes;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static byte[] hash(File f) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+
+		ByteBuffer buf = buffer_.get();
+		FileInputStream in = new FileInputStream(f);
+		try {
+			FileChannel channel = in.getChannel();
+			buf.clear();
+			while(channel.read(buf) >= 0){
+				buf.flip();
+				md.update(buf);
+				buf.clear();
+			}
+		} finally {
+			in.close();
+		}
+		return md.digest();
+	}
+
+	/**
+	 * Hashes file: tracked outputs pattern, checked out revisions, file count, then path, size and hash of every file
+	 */
+	private static final class Recorded {
+		String includes_;
+		String ibvcRevision_;
+		String sfvcRevision_;
+		final Map<String, Long> sizes_ = new TreeMap<String, Long>();
+		final Map<String, byte[]> hashes_ = new HashMap<String, byte[]>();
+
+		static Recorded read(File file, boolean headerOnly) throws IOException {
+			Recorded r = new Recorded();
+			DataInputStream in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))));
+			try {
+				r.includes_ = in.readUTF();
+				r.ibvcRevision_ = in.readUTF();
+				r.sfvcRevision_ = in.readUTF();
+				if(headerOnly){
+					return r;
+				}
+				int count = in.readInt();
+				for(int i = 0; i < count; ++i){
+					String path = in.readUTF();
+					r.sizes_.put(path, in.readLong());
+					byte[] h = new byte[in.readUnsignedByte()];
+					in.readFully(h);
+					r.hashes_.put(path, h);
+				}
+			} finally {
+				in.close();
+			}
+			return r;
+		}
+	}
+
+	private static final class ReadIncludes extends MasterToSlaveFileCallable<String> {
+		private static final long serialVersionUID = 1L;
+
+		public String invoke(File hashes, VirtualChannel channel) throws IOException, InterruptedException {
+			return Recorded.read(hashes, true).includes_;
+		}
+	}
+
+	private static final class Record extends MasterToSlaveFileCallable<Integer> {
+		private static final long serialVersionUID = 1L;
+
+		private final String includes_;
+		private final String ibvcRevision_;
+		private final String sfvcRevision_;
+
+		Record(String includes, String ibvcRevision, String sfvcRevision){
+			includes_ = includes;
+			ibvcRevision_ = ibvcRevision;
+			sfvcRevision_ = sfvcRevision;
+		}
+
+		public Integer invoke(File file, VirtualChannel channel) throws IOException, InterruptedException {
+			File workspace = workspaceOf(file);
+			Map<String, Long> sizes = scan(workspace, includes_);
+			Map<String, byte[]> hashes = hash(workspace, new ArrayList<String>(sizes.keySet()), null, null);
+
+			file.getParentFile().mkdirs();
+			DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(file))));
+			try {
+				out.writeUTF(includes_);
+				out.writeUTF(ibvcRevision_);
+				out.writeUTF(sfvcRevision_);
+				out.writeInt(sizes.size());
+				for(Map.Entry<String, Long> e : sizes.entrySet()){
+					byte[] h = hashes.get(e.getKey());
+					out.writeUTF(e.getKey());
+					out.writeLong(e.getValue());
+					out.writeByte(h.length);
+					out.write(h);
+				}
+			} finally {
+				out.close();
+			}
+			new File(file.getParentFile(), file.getName().replace(".gz", ".wanted")).delete();
+			return sizes.size();
+		}
+	}
+
+	/**
+	 * Result of comparing the tracked outputs with the recorded hashes
+	 */
+	private static final class Comparison implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		int files_;
+		String ibvcRevision_;
+		String sfvcRevision_;
+		/**
+		 * First changed, added or deleted file, or null if all are identical
+		 */
+		String changed_;
+	}
+
+	private static final class Compare extends MasterToSlaveFileCallable<Comparison> {
+		private static final long serialVersionUID = 1L;
+
+		public Comparison invoke(File file, VirtualChannel channel) throws IOException, InterruptedException {
+			Recorded recorded = Recorded.read(file, false);
+			File workspace = workspaceOf(file);
+			Map<String, Long> sizes = scan(workspace, recorded.includes_);
+
+			Comparison c = new Comparison();
+			c.files_ = sizes.size();
+			c.ibvcRevision_ = recorded.ibvcRevision_;
+			c.sfvcRevision_ = recorded.sfvcRevision_;
+
+			// Added, deleted or resized files differ without hashing
+			for(Map.Entry<String, Long> e : recorded.sizes_.entrySet()){
+				if(!e.getValue().equals(sizes.get(e.getKey()))){
+					c.changed_ = e.getKey();
+					return c;
+				}
+			}
+			for(String path : sizes.keySet()){
+				if(!recorded.sizes_.containsKey(path)){
+					c.changed_ = path;
+					return c;
+				}
+			}
+
+			String[] changed = new String[1];
+			hash(workspace, new ArrayList<String>(sizes.keySet()), recorded.hashes_, changed);
+			c.changed_ = changed[0];
+			return c;
+		}
+	}
+}
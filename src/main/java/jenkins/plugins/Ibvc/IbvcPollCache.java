@@ -0,0 +1,110 @@
+package jenkins.plugins.Ibvc;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import hudson.model.Computer;
+import hudson.model.Node;
+import jenkins.model.Jenkins;
+
+/**
+ * Controller-wide cache of IBVC "query latest" results.
+ * <p>
+ * Jobs polling the same IBVC configuration and parameters share one probe per interval, relative configurations included,
+ * as all queries run on the same node.
+ * Concurrent polls of the same key wait for the probe already in flight rather than starting another.
+ * Failed probes are not cached.
+ * <p>
+ * Queries don't need a workspace. They run on the controller, or on the node named by the
+ * <code>jenkins.plugins.Ibvc.IbvcPollCache.node</code> system property, which needs an IBVC installation and license.
+ */
+public class IbvcPollCache {
+
+	static final long TTL = TimeUnit.SECONDS.toMillis(Integer.getInteger(IbvcPollCache.class.getName() + ".ttlSeconds", 60));
+
+	static final String NODE = System.getProperty(IbvcPollCache.class.getName() + ".node", "");
+
+	private static final ConcurrentMap<String, Entry> cache_ = new ConcurrentHashMap<String, Entry>();
+
+	private static final class Entry {
+		final long created_ = System.currentTimeMillis();
+		final FutureTask<IbvcRevisionState> task_;
+
+		Entry(Callable<IbvcRevisionState> probe){
+			task_ = new FutureTask<IbvcRevisionState>(probe);
+		}
+
+		boolean isExpired(long now){
+			return task_.isDone() && (now - created_ > TTL);
+		}
+	}
+
+	/**
+	 * Get the cached result for key, or run probe on the calling thread if there is none.
+	 * 
+	 * @return Latest revision state or null if IBVC doesn't have a matching revision
+	 */
+	public static IbvcRevisionState query(String key, Callable<IbvcRevisionState> probe) throws IOException, InterruptedException {
+		purgeExpired();
+
+		Entry e = cache_.get(key);
+		if((e == null) || e.isExpired(System.currentTimeMillis())){
+			Entry mine = new Entry(probe);
+			boolean owner = (e == null) ? (cache_.putIfAbsent(key, mine) == null) : cache_.replace(key, e, mine);
+			if(owner){
+				mine.task_.run();
+			}
+			e = cache_.get(key);
+			if(e == null){
+				e = mine;
+			}
+		}
+
+		try {
+			return e.task_.get();
+		} catch (ExecutionException ex) {
+			cache_.remove(key, e);
+			Throwable cause = ex.getCause();
+			if(cause instanceof IOException){
+				throw (IOException)cause;
+			}
+			if(cause instanceof InterruptedException){
+				throw (InterruptedException)cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Node that runs queries, see {@link #NODE}
+	 *
+	 * @return Node if it is online, or null
+	 */
+	static Node queryNode(){
+		Jenkins j = Jenkins.getInstance();
+		if(j == null){
+			return null;
+		}
+		Node node = (NODE.length() > 0) ? j.getNode(NODE) : j;
+		Computer c = (node != null) ? node.toComputer() : null;
+		return ((c != null) && c.isOnline()) ? node : null;
+	}
+
+	public static void invalidate(String key){
+		cache_.remove(key);
+	}
+
+	private static void purgeExpired(){
+		long now = System.currentTimeMillis();
+		for(Iterator<Entry> it = cache_.values().iterator(); it.hasNext(); ){
+			if(it.next().isExpired(now)){
+				it.remove();
+			}
+		}
+	}
+}
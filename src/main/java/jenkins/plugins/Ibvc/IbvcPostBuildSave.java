@@ -5,31 +5,50 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Map.Entry;
 import java.util.Collection;
+import java.util.TreeMap;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import hudson.AbortException;
 import hudson.EnvVars;
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.Launcher;
-import hudson.Launcher.ProcStarter;
-import hudson.Proc;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
-import hudson.model.Queue;
+import hudson.model.Node;
 import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Publisher;
 import hudson.tasks.Recorder;
+import hudson.util.FormValidation;
+import jenkins.model.Jenkins;
+import jenkins.tasks.SimpleBuildStep;
 import net.sf.json.JSONObject;
+import org.jenkinsci.Symbol;
 
-public class IbvcPostBuildSave extends Recorder {
+/**
+ * IBVC checkin after the build.
+ * <p>
+ * With aggregation and the matrix-project plugin installed, the publisher is replaced by {@link IbvcMatrixCheckin.Aggregating},
+ * which checks in all cells of a matrix build together. This class doesn't use matrix types, so it loads without that plugin.
+ */
+public class IbvcPostBuildSave extends Recorder implements SimpleBuildStep {
 
     private final String ibvcConfig_;
     private final boolean runAsync_;
+    private final boolean coalesce_;
     private final boolean purgeOther_;
     private final boolean keep_;
+    private final boolean changedOnly_;
+    private final boolean aggregate_;
+    private final int uploadParallelism_;
+    private final boolean skipUnchanged_;
+    private final String trackedOutputs_;
     private final String addiotinalArguments_;
     private final Collection<IbvcParameter> parameters_;
 	private final boolean overrideIbvcScmConfig_;
@@ -38,11 +57,17 @@ public class IbvcPostBuildSave extends Recorder {
     public IbvcPostBuildSave(
         String ibvcConfig
         , boolean runAsync
+        , boolean coalesce
 		, boolean keep
 		, boolean purgeOther
 		, String addiotinalArguments
 		, Collection<IbvcParameter> parameters
 		, boolean overrideIbvcScmConfig
+		, boolean changedOnly
+		, boolean aggregate
+		, int uploadParallelism
+		, boolean skipUnchanged
+		, String trackedOutputs
 		)
     {		
 		// Override IBVC SCM defaults?
@@ -70,9 +95,15 @@ public class IbvcPostBuildSave extends Recorder {
 		}
 
 		runAsync_ = runAsync;
+		coalesce_ = runAsync && coalesce;
 		purgeOther_ = purgeOther;
 		keep_ = keep;
-		addiotinalArguments_ = addiotinalArguments;
+		changedOnly_ = changedOnly;
+		aggregate_ = aggregate;
+		uploadParallelism_ = uploadParallelism;
+		skipUnchanged_ = skipUnchanged;
+		trackedOutputs_ = Util.fixNull(trackedOutputs);
+		addiotinalArguments_ = Util.fixNull(addiotinalArguments);
     }
 	
 	public String getIbvcConfig(){
@@ -81,12 +112,36 @@ public class IbvcPostBuildSave extends Recorder {
 	public boolean isRunAsync(){
 		return runAsync_;
 	}
+	public boolean isCoalesce(){
+		return coalesce_;
+	}
 	public boolean isPurgeOther(){
 		return purgeOther_;
 	}
 	public boolean isKeep(){
 		return keep_;
 	}
+	public boolean isChangedOnly(){
+		return changedOnly_;
+	}
+	public boolean isAggregate(){
+		return aggregate_;
+	}
+	/**
+	 * Maximal count of concurrent uploads of an aggregated matrix checkin, 0 for all at once
+	 */
+	public int getUploadParallelism(){
+		return uploadParallelism_;
+	}
+	public boolean isSkipUnchanged(){
+		return skipUnchanged_;
+	}
+	/**
+	 * Ant pattern of the outputs compared with the checked out revision, empty for all files
+	 */
+	public String getTrackedOutputs(){
+		return trackedOutputs_;
+	}
 	public String getAddiotinalArguments(){
 		return addiotinalArguments_;
 	}
@@ -97,27 +152,57 @@ public class IbvcPostBuildSave extends Recorder {
 		return overrideIbvcScmConfig_;
 	}
 
+	/**
+	 * Aggregating publishers of older configurations, and of configurations saved before matrix-project was installed, become matrix aware
+	 */
+	protected Object readResolve(){
+		if (aggregate_ && Util.isMatrixProjectInstalled()){
+			return IbvcMatrixCheckin.aggregating(this);
+		}
+		return this;
+	}
+
+	/**
+	 * Freestyle builds reach here through {@link Recorder#perform(AbstractBuild, Launcher, BuildListener)}.
+	 * In Pipeline, result is not set while the build is running so an unset result counts as success.
+	 */
 	@Override
-	public boolean perform(AbstractBuild<?,?> build, Launcher launcher, BuildListener listener)
+	public void perform(Run<?,?> build, FilePath workspace, Launcher launcher, TaskListener listener)
               throws InterruptedException, IOException{
     	
-	    if (build.getProject() instanceof Queue.FlyweightTask){
+	    if (Util.isFlyweight(build)){
 	        listener.getLogger().println( Messages.Skipping_FlyweightTask());
-			return true;
+			return;
 	    }
 		
-		if (build.getResult() != Result.SUCCESS){
+		Result result = build.getResult();
+		if ((result != null) && (result != Result.SUCCESS)){
 	        listener.getLogger().println( Messages.Skipping_IBVC_Save_on_failure());
-			return true;
+			return;
+		}
+
+		long startNanos = System.nanoTime();
+		long startedAt = System.currentTimeMillis();
+		try {
+			checkin(build, workspace, launcher, listener);
+		} finally {
+			Node node = Util.workspaceNode(workspace);
+			IbvcTimingAction.recordOverhead(build, "checkin", (node != null) ? node.getNodeName() : "", startNanos, startedAt);
 		}
+	}
+
+	private void checkin(Run<?,?> build, FilePath workspace, Launcher launcher, TaskListener listener)
+              throws InterruptedException, IOException{
 	    final EnvVars vars = build.getEnvironment(listener);
+	    final Node node = Util.workspaceNode(workspace);
     	
-    	// Detect home, license file from node properties
-		String ibvcPath = vars.expand(Util.nodeIbvcPath(build));
-		String ibvcLic = vars.expand(Util.nodeLicensePath(build));
+    	// Detect IBVC installation and license file of the node
+	    IbvcInstallation ibvc = Util.nodeInstallation(node, listener);
+		String ibvcPath = vars.expand(ibvc.getExecutable());
+		String ibvcLic = vars.expand(ibvc.getLicensePath());
 
 		ArrayList<String> args = new ArrayList<String>();
-        ProcStarter ps = launcher.new ProcStarter();
+		ArrayList<String> paramArgs = new ArrayList<String>();
 
         // Build command line
 		args.add(ibvcPath);
@@ -144,7 +229,10 @@ public class IbvcPostBuildSave extends Recorder {
 			args.add("--keep");
 		}
 		
-		if (purgeOther_){
+		// With a retention policy, checkin is a pure write and purges are scheduled off-peak
+		IbvcRetention retention = IbvcRetention.get();
+		boolean scheduledPurge = (retention != null) && retention.isEnabled();
+		if (purgeOther_ && !scheduledPurge){
 			args.add("--purge-other");
 		}
 			
@@ -152,44 +240,141 @@ public class IbvcPostBuildSave extends Recorder {
 			args.add(vars.expand(addiotinalArguments_));
 		}
 		
+		// Parameters are also kept sorted to identify checkins that may coalesce
+		TreeMap<String, String> params;
 		if ((parameters_ == null) || (parameters_.size() == 0)){
-			for (Entry<String, String> kv : vars.entrySet()){
-			    if (kv.getKey().startsWith("IBVC_PARAM_")){
-			    	String k = kv.getKey().substring("IBVC_PARAM_".length());
-					args.add("--param-" + vars.expand(k));
-					args.add(vars.expand(kv.getValue()));
-			    }
+			params = environmentParameters(vars);
+			for (Entry<String, String> kv : params.entrySet()){
+				paramArgs.add("--param-" + kv.getKey());
+				paramArgs.add(kv.getValue());
 			}
 		}
 		else{
+			params = new TreeMap<String, String>();
 			for (IbvcParameter p : parameters_){
 				if (p.getName().length() > 0){
-					args.add( "--param-" + vars.expand(p.getName()));
-					args.add( vars.expand(p.getValue()));
+					paramArgs.add( "--param-" + vars.expand(p.getName()));
+					paramArgs.add( vars.expand(p.getValue()));
+					params.put(vars.expand(p.getName()), vars.expand(p.getValue()));
 				}
 			}
 		}
 
-        ps.cmds(args);
-        if (!runAsync_){
-	        ps.stderr(listener.getLogger());
-	        ps.stdout(listener.getLogger());
+		args.addAll(paramArgs);
+
+		// Checked in revisions are recorded so that checkouts of the same SFVC revision skip the best-match search
+		String expandedConfig = vars.expand(Util.fixNull(ibvcConfig));
+		String repository = IbvcRevisionIndex.repository(build.getParent().getFullName(), expandedConfig);
+		String scope = IbvcRevisionIndex.scope(build.getParent().getFullName(), expandedConfig, params);
+
+		// Matrix cells only stage, the parent build checks all cells in at once
+		boolean aggregatedCell = aggregate_ && (workspace != null) && Util.isMatrixProjectInstalled() && IbvcMatrixCheckin.isCell(build);
+
+		// Outputs identical to the checked out revision are already in the repository, see IbvcOutputHashes.
+		// Not for aggregated cells: an unstaged cell would leave the committed revision incomplete
+		if (workspace != null){
+			String trackedOutputs = (skipUnchanged_ && !aggregatedCell) ? vars.expand(trackedOutputs_).trim() : "";
+			if (skipUnchanged_ && aggregatedCell){
+				listener.getLogger().println(Messages.IBVC_skip_unchanged_aggregated());
+			}
+			else if (skipUnchanged_ && (trackedOutputs.length() == 0)){
+				listener.getLogger().println(Messages.IBVC_no_tracked_outputs());
+			}
+			if (trackedOutputs.length() > 0){
+				IbvcRevisionState unchanged = IbvcOutputHashes.unchanged(workspace, scope, trackedOutputs, listener);
+				if (unchanged != null){
+					if (unchanged.getSfvcRevision().length() > 0){
+						IbvcRevisionIndex.get().put(scope, unchanged.getSfvcRevision(), unchanged.getIbvcRevision());
+					}
+					listener.getLogger().println(Messages.IBVC_checkin_skipped_unchanged());
+					return;
+				}
+			}
+			else{
+				IbvcOutputHashes.discard(workspace, scope);
+			}
+		}
+
+		// Purges are scheduled once the checkin succeeded, see IbvcPurge
+		ArrayList<String> purgeArgs = null;
+		if (scheduledPurge){
+			purgeArgs = new ArrayList<String>();
+			purgeArgs.add(ibvcPath);
+			purgeArgs.add("--operation");
+			purgeArgs.add("purge");
+			if (expandedConfig.length() > 0){
+				purgeArgs.add("--ibvc-config");
+				purgeArgs.add(expandedConfig);
+			}
+			if (ibvcLic.length() > 0){
+				purgeArgs.add("--lic-file");
+				purgeArgs.add(ibvcLic);
+			}
+			purgeArgs.addAll(paramArgs);
+		}
+
+		// Only hand IBVC what changed since checkout, see IbvcManifest
+		if (workspace != null){
+			if (changedOnly_){
+				FilePath changedFiles = IbvcManifest.changedFiles(workspace, scope, listener);
+				if (changedFiles != null){
+					args.add("--changed-files");
+					args.add(changedFiles.getRemote());
+				}
+			}
+			else{
+				IbvcManifest.discard(workspace, scope);
+			}
+		}
+
+        if (aggregatedCell){
+        	IbvcMatrixCheckin.stage(build, workspace, launcher, ibvc, args, ibvcPath, ibvcLic, repository, scope, purgeArgs, listener);
+        	return;
         }
+
+        // Asynchronous checkins are run by the node's bounded queue, which attaches the result to the build
+        if (runAsync_){
+        	IbvcCheckinQueue.forNode(node).submit(build, launcher, ibvc, args, repository, scope, purgeArgs, coalesce_, workspace, listener);
+	        listener.getLogger().println(Messages.IBVC_return_immediately());
+		    return;
+        }
+
+        IbvcResultFile resultFile = IbvcResultFile.create(ibvc, workspace);
+        if (resultFile != null){
+        	resultFile.addArgs(args);
+        }
+
+        BestMatchOutputStream out = new BestMatchOutputStream(listener.getLogger(), build.getCharset(), BestMatchOutputStream.CHECKIN);
         
+        // Concurrent checkins of a repository are limited, see IbvcConcurrency
+        IbvcRepositoryPool.Permit permit = null;
         try {
-        	Proc ibPrc = launcher.launch(ps);
-        	if (runAsync_){
-    	        listener.getLogger().println(Messages.IBVC_return_immediately());
-    		    return true;
+        	permit = IbvcRepositoryPool.get(IbvcRepositoryPool.CHECKIN, repository)
+        			.acquire(build, (node != null) ? node.getNodeName() : "", listener.getLogger());
+        	long start = System.nanoTime();
+        	int ibExitCode = IbvcWorker.launch(ibvc, launcher, args, out, listener.getLogger());
+        	out.close();
+        	permit.release();
+        	if (resultFile != null){
+        		resultFile.read();
         	}
-        	
-        	int ibExitCode = ibPrc.join();
+        	IbvcTimingAction.record(build, "checkin", (node != null) ? node.getNodeName() : "", start, out, ibExitCode, resultFile);
 
         	// Analyze exit code.
         	switch (ibExitCode){
         	case 0:
     	        listener.getLogger().println(Messages.IBVC_finished_successfully());
-    		    return true;
+    	        IbvcRevisionState state = IbvcResultFile.revisions(resultFile, out);
+    	        if (state != null){
+    	        	IbvcRevisionIndex.get().put(scope, state.getSfvcRevision(), state.getIbvcRevision());
+    	        }
+    	        if (purgeArgs != null){
+    	        	IbvcPurge.checkedIn(scope, (node != null) ? node.getNodeName() : "", purgeArgs);
+    	        	if (purgeOther_){
+    	        		listener.getLogger().println(Messages.IBVC_purge_scheduled());
+    	        	}
+    	        }
+    		    return;
     	        
 			default:
 				build.setResult(Result.FAILURE);
@@ -202,18 +387,40 @@ public class IbvcPostBuildSave extends Recorder {
 		} catch (InterruptedException e) {
 	        listener.getLogger().println(String.format( "%s: %s", Messages.IBVC_failed_to_finish_properly(), e.getMessage()));
 			throw e;
+		} finally {
+			if (permit != null){
+				permit.release();
+			}
+			if (resultFile != null){
+				resultFile.delete();
+			}
 		}
      }
 	
+	/**
+	 * IBVC parameters set by IBVC SCM or build wrapper as IBVC_PARAM_name variables, expanded and sorted by name
+	 */
+	static TreeMap<String, String> environmentParameters(EnvVars vars){
+		TreeMap<String, String> params = new TreeMap<String, String>();
+		for (Entry<String, String> kv : vars.entrySet()){
+		    if (kv.getKey().startsWith("IBVC_PARAM_")){
+		    	String k = kv.getKey().substring("IBVC_PARAM_".length());
+				params.put(vars.expand(k), vars.expand(kv.getValue()));
+		    }
+		}
+		return params;
+	}
+
 	public BuildStepMonitor getRequiredMonitorService() {
 		return BuildStepMonitor.NONE;
 	}
 	
 	@Override
     public DescriptorImpl getDescriptor() {
-        return (DescriptorImpl) super.getDescriptor();
+        // Also the descriptor of IbvcMatrixCheckin.Aggregating
+        return Jenkins.getInstance().getDescriptorByType(DescriptorImpl.class);
     }
-    @Extension
+    @Extension @Symbol("ibvcCheckin")
     public static final class DescriptorImpl extends BuildStepDescriptor<Publisher> {
         public DescriptorImpl() {
 			super(IbvcPostBuildSave.class);
@@ -223,7 +430,7 @@ public class IbvcPostBuildSave extends Recorder {
         @Override
         public IbvcPostBuildSave newInstance(StaplerRequest req, JSONObject formData) throws FormException {
             IbvcPostBuildSave scm = (IbvcPostBuildSave) super.newInstance(req, formData);
-            return scm;
+            return (IbvcPostBuildSave) scm.readResolve();
         }
 
         @Override
@@ -241,5 +448,9 @@ public class IbvcPostBuildSave extends Recorder {
 		public boolean isApplicable(Class<? extends AbstractProject> arg0) {
 			return true;
 		}
+
+		public FormValidation doCheckTrackedOutputs(@QueryParameter String value){
+			return (Util.fixNull(value).trim().length() > 0) ? FormValidation.ok() : FormValidation.error(Messages.IBVC_tracked_outputs_required());
+		}
     }
 }
@@ -0,0 +1,207 @@
+package jenkins.plugins.Ibvc;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+import hudson.slaves.WorkspaceList;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * Runs IBVC checkout-best-match on idle nodes with {@link IbvcNodeProperties#isPrewarm()},
+ * in the workspaces that were recently checked out there, so the next build only applies a small delta.
+ * <p>
+ * A node is skipped while any of its executors is busy, and each workspace is locked while it is updated.
+ * Builds aren't handed to the node while it pre-warms, as they would move to another, cold workspace like <code>ws@2</code>.
+ * Instead, the pre-warm is interrupted and the build starts in the real workspace once it stopped.
+ * A pre-warm is also interrupted when an executor of the node turns busy otherwise.
+ * Workspaces with asynchronous checkins queued or running in {@link IbvcCheckinQueue} are skipped.
+ * Clean checkout is never requested.
+ */
+@Extension
+public class IbvcPrewarm extends AsyncPeriodicWork {
+
+	static final long RECURRENCE_MINUTES = Long.getLong(IbvcPrewarm.class.getName() + ".recurrenceMinutes", 5);
+	static final long BUSY_CHECK_SECONDS = 1;
+
+	/**
+	 * Running pre-warms by node name
+	 */
+	private static final ConcurrentMap<String, BusyWatch> running_ = new ConcurrentHashMap<String, BusyWatch>();
+
+	public IbvcPrewarm(){
+		super("IBVC pre-warm");
+	}
+
+	@Override
+	public long getRecurrencePeriod(){
+		return TimeUnit.MINUTES.toMillis(RECURRENCE_MINUTES);
+	}
+
+	@Override
+	protected void execute(TaskListener listener) throws IOException, InterruptedException {
+		Jenkins j = Jenkins.getInstance();
+		if(j == null){
+			return;
+		}
+		for(Computer c : j.getComputers()){
+			Node node = c.getNode();
+			IbvcNodeProperties np = Util.nodeProperties(node);
+			if((np == null) || !np.isPrewarm()){
+				continue;
+			}
+			for(IbvcNodeWorkspaces.Workspace w : IbvcNodeWorkspaces.forNode(node.getNodeName()).getRecent()){
+				// Back off as soon as the node has work
+				if(!isIdle(c) || !prewarm(c, node, w, listener)){
+					listener.getLogger().println(Messages.IBVC_prewarm_busy(c.getDisplayName()));
+					break;
+				}
+			}
+		}
+	}
+
+	private static boolean isIdle(Computer c){
+		return c.isOnline() && c.isAcceptingTasks() && (c.countBusy() == 0);
+	}
+
+	/**
+	 * @return False if pre-warm was interrupted because the node turned busy
+	 */
+	private static boolean prewarm(Computer c, Node node, IbvcNodeWorkspaces.Workspace w, TaskListener listener) throws InterruptedException {
+		FilePath ws = node.createPath(w.getPath());
+		if(ws == null){
+			return true;
+		}
+		if(IbvcCheckinQueue.hasCheckins(node.getNodeName(), w.getPath())){
+			listener.getLogger().println(Messages.IBVC_prewarm_checkin_pending(w.getJobName(), w.getPath()));
+			return true;
+		}
+
+		// Builds on the node would move to another workspace while the lease is held, so they are kept in the queue, see Dispatcher
+		BusyWatch busy = new BusyWatch(c);
+		running_.put(node.getNodeName(), busy);
+		WorkspaceList.Lease lease = isIdle(c) ? c.getWorkspaceList().tryAcquire(ws) : null;
+		if(lease == null){
+			running_.remove(node.getNodeName(), busy);
+			return !busy.stop() && isIdle(c);
+		}
+		ScheduledFuture<?> watch = Timer.get().scheduleWithFixedDelay(busy, BUSY_CHECK_SECONDS, BUSY_CHECK_SECONDS, TimeUnit.SECONDS);
+		try {
+			if(!ws.exists()){
+				IbvcNodeWorkspaces.forNode(node.getNodeName()).remove(w);
+				return true;
+			}
+
+			listener.getLogger().println(Messages.IBVC_prewarm(w.getJobName(), c.getDisplayName(), w.getPath()));
+			Launcher launcher = node.createLauncher(listener);
+			BestMatchOutputStream out = new BestMatchOutputStream(listener.getLogger());
+			int exitCode = IbvcWorker.launch(Util.nodeInstallation(node, listener), launcher, w.getArgs(), out, listener.getLogger());
+			out.close();
+			if((exitCode == 0) && (out.getIbvcRevision() != null)){
+				IbvcNodeWorkspaces.forNode(node.getNodeName()).updated(w, new IbvcRevisionState(out.getIbvcRevision(), out.getSfvcRevision()));
+			}
+			else if(exitCode != 0){
+				listener.getLogger().println(Messages.IBVC_terminated_with_errors());
+			}
+		} catch (IOException e) {
+			listener.error(e.getMessage());
+		} catch (InterruptedException e) {
+			if(!busy.stop()){
+				throw e;
+			}
+		} finally {
+			busy.stop();
+			watch.cancel(false);
+			lease.release();
+			running_.remove(node.getNodeName(), busy);
+			if(busy.stop()){
+				Jenkins.getInstance().getQueue().scheduleMaintenance();
+			}
+		}
+		return !busy.stop();
+	}
+
+	/**
+	 * Keeps builds off a node while it pre-warms, and stops the pre-warm so they can start in its workspaces
+	 */
+	@Extension
+	public static final class Dispatcher extends QueueTaskDispatcher {
+		@Override
+		public CauseOfBlockage canTake(Node node, Queue.BuildableItem item){
+			BusyWatch busy = running_.get(node.getNodeName());
+			if(busy == null){
+				return null;
+			}
+			busy.interrupt();
+			return new Stopping(node.getDisplayName());
+		}
+	}
+
+	/**
+	 * The node is pre-warming, which is being stopped
+	 */
+	private static final class Stopping extends CauseOfBlockage {
+		private final String nodeName_;
+
+		Stopping(String nodeName){
+			nodeName_ = nodeName;
+		}
+
+		@Override
+		public String getShortDescription(){
+			return Messages.IBVC_prewarm_stopping(nodeName_);
+		}
+	}
+
+	/**
+	 * Interrupts the pre-warming thread once the node turns busy or a build waits for it
+	 */
+	private static final class BusyWatch implements Runnable {
+		private final Computer computer_;
+		private final Thread thread_ = Thread.currentThread();
+		private boolean stopped_ = false;
+		private boolean busy_ = false;
+
+		BusyWatch(Computer computer){
+			computer_ = computer;
+		}
+
+		public void run(){
+			if(!isIdle(computer_)){
+				interrupt();
+			}
+		}
+
+		synchronized void interrupt(){
+			if(!stopped_ && !busy_){
+				busy_ = true;
+				thread_.interrupt();
+			}
+		}
+
+		/**
+		 * Stop watching. Clears the interrupt if the watch fired, even after IBVC exited
+		 * 
+		 * @return Whether the node turned busy
+		 */
+		synchronized boolean stop(){
+			stopped_ = true;
+			if(busy_){
+				Thread.interrupted();
+			}
+			return busy_;
+		}
+	}
+}
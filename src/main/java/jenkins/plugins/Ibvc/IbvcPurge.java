@@ -0,0 +1,144 @@
+package jenkins.plugins.Ibvc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+
+/**
+ * Applies the {@link IbvcRetention} policy to IBVC configurations and parameters that were checked in since they were last purged.
+ * <p>
+ * Purges run in the off-peak window, at most {@link IbvcRetention#getMaxConcurrentPurges()} at a time,
+ * on the node of the latest checkin with its IBVC installation.
+ * Pending purges are kept in memory only: after a restart, a configuration is purged after its next checkin.
+ */
+@Extension
+public class IbvcPurge extends AsyncPeriodicWork {
+
+	static final long RECURRENCE_MINUTES = Long.getLong(IbvcPurge.class.getName() + ".recurrenceMinutes", 60);
+
+	/**
+	 * Purge command of a checked in configuration, without retention arguments
+	 */
+	private static final class Pending {
+		final String nodeName_;
+		final List<String> args_;
+
+		Pending(String nodeName, List<String> args){
+			nodeName_ = nodeName;
+			args_ = args;
+		}
+	}
+
+	/**
+	 * By revision index scope
+	 */
+	private static final ConcurrentMap<String, Pending> pending_ = new ConcurrentHashMap<String, Pending>();
+
+	public IbvcPurge(){
+		super("IBVC purge");
+	}
+
+	/**
+	 * Schedule a purge after a checkin
+	 *
+	 * @param scope Revision index scope of the checkin
+	 * @param nodeName Node of the checkin, empty for the master
+	 * @param args IBVC command line of the purge, without retention arguments
+	 */
+	static void checkedIn(String scope, String nodeName, List<String> args){
+		pending_.put(scope, new Pending(nodeName, new ArrayList<String>(args)));
+	}
+
+	@Override
+	public long getRecurrencePeriod(){
+		return TimeUnit.MINUTES.toMillis(RECURRENCE_MINUTES);
+	}
+
+	@Override
+	protected void execute(final TaskListener listener) throws IOException, InterruptedException {
+		final IbvcRetention retention = IbvcRetention.get();
+		if ((retention == null) || !retention.isEnabled() || !retention.isOffPeak(Calendar.getInstance()) || pending_.isEmpty()){
+			return;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(retention.getMaxConcurrentPurges()
+				, new NamingThreadFactory(new DaemonThreadFactory(), "IBVC purge"));
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (final Map.Entry<String, Pending> e : pending_.entrySet()){
+				futures.add(executor.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						if (purge(e.getValue(), retention, listener)){
+							// A checkin may have scheduled it again meanwhile
+							pending_.remove(e.getKey(), e.getValue());
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<?> f : futures){
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					listener.error(String.valueOf(e.getCause()));
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return Whether IBVC purged successfully
+	 */
+	private static boolean purge(Pending p, IbvcRetention retention, TaskListener listener) throws IOException, InterruptedException {
+		Jenkins j = Jenkins.getInstance();
+		if (j == null){
+			return false;
+		}
+		Node node = (p.nodeName_.length() > 0) ? j.getNode(p.nodeName_) : j;
+		Computer c = (node != null) ? node.toComputer() : null;
+		if ((c == null) || !c.isOnline()){
+			// Retried on the next run. A node that is gone is dropped
+			return (node == null);
+		}
+
+		List<String> args = new ArrayList<String>(p.args_);
+		if (retention.getKeepRevisions() > 0){
+			args.add("--keep-revisions");
+			args.add(Integer.toString(retention.getKeepRevisions()));
+		}
+		if (retention.getMaxAgeDays() > 0){
+			args.add("--max-age-days");
+			args.add(Integer.toString(retention.getMaxAgeDays()));
+		}
+
+		listener.getLogger().println(Messages.IBVC_purge(args, c.getDisplayName()));
+		Launcher launcher = node.createLauncher(listener);
+		int exitCode = launcher.launch().cmds(args).stdout(listener).join();
+		if (exitCode != 0){
+			listener.getLogger().println(Messages.IBVC_terminated_with_errors());
+			return false;
+		}
+		return true;
+	}
+}
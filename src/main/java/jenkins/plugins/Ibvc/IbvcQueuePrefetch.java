@@ -0,0 +1,138 @@
+package jenkins.plugins.Ibvc;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.AbstractProject;
+import hudson.model.BuildableItemWithBuildWrappers;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.model.queue.QueueListener;
+import hudson.tasks.BuildWrapper;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.LogTaskListener;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+
+/**
+ * Searches the best-match of IBVC jobs while they wait in the queue, and attaches it to the queue item as {@link IbvcQueuedBestMatch}.
+ * <p>
+ * Off unless the <code>jenkins.plugins.Ibvc.IbvcQueuePrefetch.threads</code> system property sets {@link #THREADS}, the count of concurrent queries.
+ * The query runs on the controller, or on the helper node named by the <code>jenkins.plugins.Ibvc.IbvcQueuePrefetch.node</code> system property,
+ * which keeps IBVC processes off the controller. Results are shared with polling through {@link IbvcPollCache}.
+ * Failures are only logged: the build then searches the best-match itself as usual.
+ */
+@Extension
+public class IbvcQueuePrefetch extends QueueListener {
+
+	private static final Logger LOGGER = Logger.getLogger(IbvcQueuePrefetch.class.getName());
+
+	static final String NODE = System.getProperty(IbvcQueuePrefetch.class.getName() + ".node", "");
+	static final int THREADS = Integer.getInteger(IbvcQueuePrefetch.class.getName() + ".threads", 0);
+
+	private static final ExecutorService executor_ = Executors.newFixedThreadPool(Math.max(THREADS, 1)
+			, new NamingThreadFactory(new DaemonThreadFactory(), "IBVC queue prefetch"));
+
+	/**
+	 * Items being resolved, so an item isn't resolved twice
+	 */
+	private static final Set<Long> inFlight_ = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+	@Override
+	public void onEnterWaiting(Queue.WaitingItem wi){
+		if (THREADS <= 0){
+			return;
+		}
+		final IbvcCheckout checkout = checkoutOf(wi.task);
+		if ((checkout == null) || !inFlight_.add(wi.getId())){
+			return;
+		}
+
+		final long id = wi.getId();
+		final AbstractProject<?,?> project = (AbstractProject<?,?>)wi.task;
+		final ParametersAction parameters = wi.getAction(ParametersAction.class);
+		executor_.submit(new Runnable() {
+			public void run(){
+				try {
+					prefetch(id, project, parameters, checkout);
+				} catch (Exception e) {
+					LOGGER.log(Level.FINE, "IBVC best-match of queued " + project.getFullName() + " failed", e);
+				} finally {
+					inFlight_.remove(id);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Main checkout of the IBVC SCM or build wrapper of a freestyle-like job
+	 */
+	static IbvcCheckout checkoutOf(Queue.Task task){
+		if (!(task instanceof AbstractProject) || (task instanceof Queue.FlyweightTask)){
+			return null;
+		}
+		AbstractProject<?,?> project = (AbstractProject<?,?>)task;
+		if (project.getScm() instanceof IbvcSCMPlugin){
+			return ((IbvcSCMPlugin)project.getScm()).newCheckout();
+		}
+		if (project instanceof BuildableItemWithBuildWrappers){
+			for (BuildWrapper w : ((BuildableItemWithBuildWrappers)project).getBuildWrappersList()){
+				if (w instanceof IbvcBuildWrapper){
+					return ((IbvcBuildWrapper)w).newCheckout();
+				}
+			}
+		}
+		return null;
+	}
+
+	private static void prefetch(final long id, AbstractProject<?,?> project, ParametersAction parameters, final IbvcCheckout checkout) throws IOException, InterruptedException {
+		Jenkins j = Jenkins.getInstance();
+		if (j == null){
+			return;
+		}
+		final Node node = (NODE.length() > 0) ? j.getNode(NODE) : j;
+		Computer c = (node != null) ? node.toComputer() : null;
+		if ((c == null) || !c.isOnline()){
+			return;
+		}
+
+		final TaskListener listener = new LogTaskListener(LOGGER, Level.FINE);
+		final EnvVars vars = project.getEnvironment(node, listener);
+		Util.addParameters(vars, parameters);
+		final Launcher launcher = node.createLauncher(listener);
+
+		String scope = checkout.scope(project, vars);
+		String target = checkout.targetSfvcRevision(vars);
+		IbvcRevisionState state = IbvcPollCache.query(String.format("%s\n%s", scope, target), new Callable<IbvcRevisionState>() {
+			public IbvcRevisionState call() throws IOException, InterruptedException {
+				return checkout.query(node, launcher, listener, vars);
+			}
+		});
+		if (state == null){
+			return;
+		}
+
+		// The item may have moved on in the queue meanwhile, and takes its actions along to the build
+		final IbvcQueuedBestMatch action = new IbvcQueuedBestMatch(scope, target, state);
+		Queue.withLock(new Runnable() {
+			public void run(){
+				Queue.Item item = Queue.getInstance().getItem(id);
+				if (item != null){
+					item.addAction(action);
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,50 @@
+package jenkins.plugins.Ibvc;
+
+import java.util.concurrent.TimeUnit;
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+
+/**
+ * Best-match found by {@link IbvcQueuePrefetch} while the build was queued.
+ * Moves with the queue item to the build, where {@link IbvcCheckout} checks it out without searching for the best-match again.
+ * <p>
+ * It is only used for the same configuration, parameters and target revision, and for {@link #MAX_AGE_SECONDS}.
+ * The repository may have a better match after that.
+ */
+public class IbvcQueuedBestMatch extends InvisibleAction {
+
+	static final long MAX_AGE_SECONDS = Long.getLong(IbvcQueuedBestMatch.class.getName() + ".maxAgeSeconds", 600);
+
+	private final String scope_;
+	private final String targetSfvcRevision_;
+	private final IbvcRevisionState state_;
+	private final long resolved_ = System.currentTimeMillis();
+
+	IbvcQueuedBestMatch(String scope, String targetSfvcRevision, IbvcRevisionState state){
+		scope_ = scope;
+		targetSfvcRevision_ = targetSfvcRevision;
+		state_ = state;
+	}
+
+	/**
+	 * Get the best-match found while the build was queued, if it is for this checkout and fresh
+	 *
+	 * @return Best-match revisions, or null
+	 */
+	static IbvcRevisionState lookup(Run<?,?> build, String scope, String targetSfvcRevision, TaskListener listener){
+		for (IbvcQueuedBestMatch q : build.getActions(IbvcQueuedBestMatch.class)){
+			if (!q.scope_.equals(scope) || !q.targetSfvcRevision_.equals(targetSfvcRevision)){
+				continue;
+			}
+			long ageSeconds = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - q.resolved_);
+			if (ageSeconds > MAX_AGE_SECONDS){
+				listener.getLogger().println(Messages.IBVC_queued_best_match_stale(q.state_.getIbvcRevision(), ageSeconds));
+				return null;
+			}
+			listener.getLogger().println(Messages.IBVC_queued_best_match(q.state_.getIbvcRevision(), q.state_.getSfvcRevision()));
+			return q.state_;
+		}
+		return null;
+	}
+}
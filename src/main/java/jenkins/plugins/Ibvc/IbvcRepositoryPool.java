@@ -0,0 +1,297 @@
+package jenkins.plugins.Ibvc;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import hudson.model.Run;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Slots of concurrent IBVC checkouts or checkins of one IBVC repository, see {@link IbvcRevisionIndex#repository}, limited by {@link IbvcConcurrency}.
+ * <p>
+ * Checkout slots are reserved by {@link IbvcConcurrencyDispatcher} for queue items as they leave the queue, and taken over by the build's checkout.
+ * Operations without a reservation wait in the build for a slot: checkins, additional configurations and Pipeline checkouts.
+ * A reservation that no checkout took over is dropped when the checkout finds the workspace unchanged, when the build completes, or after {@link #RESERVATION_MINUTES}.
+ * <p>
+ * Occupancy and wait times are exported in {@link IbvcMetrics}, and waits are recorded in the build's {@link IbvcTimingAction}.
+ * Kept in memory only.
+ */
+@ExportedBean(defaultVisibility = 2)
+public final class IbvcRepositoryPool {
+
+	static final String CHECKOUT = "checkout";
+	static final String CHECKIN = "checkin";
+
+	static final long RESERVATION_MINUTES = Long.getLong(IbvcRepositoryPool.class.getName() + ".reservationMinutes", 30);
+
+	/**
+	 * By operation and IBVC configuration
+	 */
+	private static final ConcurrentMap<String, IbvcRepositoryPool> pools_ = new ConcurrentHashMap<String, IbvcRepositoryPool>();
+
+	private final String operation_;
+	private final String repository_;
+
+	// Guarded by this
+	private final Map<Long, Reservation> reserved_ = new HashMap<Long, Reservation>();
+	private final Map<Long, Long> blockedSince_ = new HashMap<Long, Long>();
+	private int running_ = 0;
+	private int waiting_ = 0;
+	private long acquired_ = 0;
+	private long totalWaitMillis_ = 0;
+	private long maxWaitMillis_ = 0;
+
+	/**
+	 * Slot reserved for a queue item
+	 */
+	private static final class Reservation {
+		final long reservedAt_;
+		final long blockedSince_;
+
+		Reservation(long reservedAt, long blockedSince){
+			reservedAt_ = reservedAt;
+			blockedSince_ = blockedSince;
+		}
+	}
+
+	private IbvcRepositoryPool(String operation, String repository){
+		operation_ = operation;
+		repository_ = repository;
+	}
+
+	/**
+	 * @param operation {@link #CHECKOUT} or {@link #CHECKIN}
+	 * @param repository IBVC repository, see {@link IbvcRevisionIndex#repository}
+	 */
+	static IbvcRepositoryPool get(String operation, String repository){
+		String key = operation + "\n" + Util.fixNull(repository);
+		IbvcRepositoryPool p = pools_.get(key);
+		if (p == null){
+			IbvcRepositoryPool tmp = new IbvcRepositoryPool(operation, Util.fixNull(repository));
+			p = pools_.putIfAbsent(key, tmp);
+			if (p == null){
+				p = tmp;
+			}
+		}
+		return p;
+	}
+
+	static List<IbvcRepositoryPool> all(){
+		return new ArrayList<IbvcRepositoryPool>(pools_.values());
+	}
+
+	/**
+	 * Wake up operations waiting for a slot, so they see the new limits
+	 */
+	static void limitsChanged(){
+		for (IbvcRepositoryPool p : pools_.values()){
+			synchronized (p){
+				p.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Drop what a queue item holds in any pool: its reservations and blocked time
+	 */
+	static void left(long queueId){
+		for (IbvcRepositoryPool p : pools_.values()){
+			synchronized (p){
+				p.blockedSince_.remove(queueId);
+				if (p.reserved_.remove(queueId) != null){
+					p.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Whether a queue item may leave the queue, otherwise it stays blocked
+	 *
+	 * @param pending Items of this pool that were handed to an executor but didn't leave the queue yet
+	 */
+	synchronized boolean hasRoom(long queueId, int pending){
+		if (reserved_.containsKey(queueId)){
+			return true;
+		}
+		long now = System.currentTimeMillis();
+		expire(now);
+		int limit = getLimit();
+		if ((limit > 0) && (occupancy() + pending >= limit)){
+			if (!blockedSince_.containsKey(queueId)){
+				blockedSince_.put(queueId, now);
+			}
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Reserve a slot for a queue item that left the queue, even if that takes the pool over its limit
+	 */
+	synchronized void reserve(long queueId){
+		long now = System.currentTimeMillis();
+		Long blockedSince = blockedSince_.remove(queueId);
+		reserved_.put(queueId, new Reservation(now, (blockedSince != null) ? blockedSince : now));
+	}
+
+	/**
+	 * Drop the reservation of a queue item
+	 */
+	synchronized void unreserve(long queueId){
+		if (reserved_.remove(queueId) != null){
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Take a slot for an operation of the build: its queue item's reservation, or else the next free slot.
+	 * With a limit, the wait is logged and recorded in {@link IbvcTimingAction} as a phase named after the operation with {@link IbvcTimingAction#WAIT}.
+	 *
+	 * @param nodeName Node of the operation, empty for the master
+	 * @return Slot to release when the operation is done
+	 */
+	Permit acquire(Run<?,?> build, String nodeName, PrintStream logger) throws InterruptedException {
+		long startedAt;
+		long waitMillis;
+		synchronized (this){
+			Reservation r = reserved_.remove(build.getQueueId());
+			if (r != null){
+				startedAt = r.blockedSince_;
+				waitMillis = r.reservedAt_ - r.blockedSince_;
+			}
+			else{
+				startedAt = System.currentTimeMillis();
+				++waiting_;
+				try {
+					boolean logged = false;
+					while (true){
+						expire(System.currentTimeMillis());
+						if (!isFull()){
+							break;
+						}
+						if (!logged){
+							logger.println(Messages.IBVC_waiting_for_repository(operation_, getDisplayName(), occupancy(), getLimit()));
+							logged = true;
+						}
+						// Reservations also expire without anyone being notified
+						wait(TimeUnit.SECONDS.toMillis(10));
+					}
+				} finally {
+					--waiting_;
+				}
+				waitMillis = System.currentTimeMillis() - startedAt;
+			}
+			++running_;
+			++acquired_;
+			totalWaitMillis_ += waitMillis;
+			maxWaitMillis_ = Math.max(maxWaitMillis_, waitMillis);
+		}
+
+		if (waitMillis > 0){
+			logger.println(Messages.IBVC_repository_slot(operation_, getDisplayName(), waitMillis));
+		}
+		if (getLimit() > 0){
+			IbvcTimingAction.recordWait(build, operation_, nodeName, startedAt, waitMillis);
+		}
+		return new Permit();
+	}
+
+	/**
+	 * A taken slot
+	 */
+	final class Permit {
+		private boolean released_ = false;
+
+		void release(){
+			synchronized (IbvcRepositoryPool.this){
+				if (!released_){
+					released_ = true;
+					--running_;
+					IbvcRepositoryPool.this.notifyAll();
+				}
+			}
+		}
+	}
+
+	private boolean isFull(){
+		int limit = getLimit();
+		return (limit > 0) && (occupancy() >= limit);
+	}
+
+	synchronized int occupancy(){
+		return running_ + reserved_.size();
+	}
+
+	private void expire(long now){
+		long maxAge = TimeUnit.MINUTES.toMillis(RESERVATION_MINUTES);
+		for (Iterator<Reservation> i = reserved_.values().iterator(); i.hasNext(); ){
+			if (now - i.next().reservedAt_ > maxAge){
+				i.remove();
+			}
+		}
+	}
+
+	String getDisplayName(){
+		return repository_;
+	}
+
+	@Exported
+	public String getOperation(){
+		return operation_;
+	}
+	@Exported
+	public String getRepository(){
+		return repository_;
+	}
+	@Exported
+	public int getLimit(){
+		return IbvcConcurrency.limit(operation_);
+	}
+	@Exported
+	public synchronized int getRunning(){
+		return running_;
+	}
+	@Exported
+	public synchronized int getReserved(){
+		return reserved_.size();
+	}
+	/**
+	 * Queue items blocked and operations waiting in builds
+	 */
+	@Exported
+	public synchronized int getWaiting(){
+		return blockedSince_.size() + waiting_;
+	}
+	@Exported
+	public synchronized long getAcquired(){
+		return acquired_;
+	}
+	@Exported
+	public synchronized long getTotalWaitMillis(){
+		return totalWaitMillis_;
+	}
+	@Exported
+	public synchronized long getMaxWaitMillis(){
+		return maxWaitMillis_;
+	}
+	/**
+	 * Longest current wait of a blocked queue item
+	 */
+	@Exported
+	public synchronized long getOldestWaitMillis(){
+		long now = System.currentTimeMillis();
+		long oldest = 0;
+		for (long since : blockedSince_.values()){
+			oldest = Math.max(oldest, now - since);
+		}
+		return oldest;
+	}
+}
@@ -0,0 +1,164 @@
+package jenkins.plugins.Ibvc;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import hudson.FilePath;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
+/**
+ * Structured results that IBVC writes with <code>--result-file</code>, as an alternative to scraping its console output.
+ * Enabled per installation with {@link IbvcInstallation#isResultFile()}.
+ * <p>
+ * The file is JSON lines, one record per line:
+ * <pre>
+ * {"type":"revision","ibvcRevision":"1234","sfvcRevision":"abcdef"}
+ * {"type":"transfer","files":120,"bytes":1048576}
+ * {"type":"phase","name":"search","millis":350}
+ * </pre>
+ * The file is streamed from the node one line at a time. Unknown record types and malformed lines are skipped,
+ * and revisions fall back to the console output when the file has none.
+ */
+class IbvcResultFile {
+
+	private static final Logger LOGGER = Logger.getLogger(IbvcResultFile.class.getName());
+
+	private final FilePath file_;
+
+	private String ibvcRevision_ = null;
+	private String sfvcRevision_ = null;
+	private Long files_ = null;
+	private Long bytes_ = null;
+	private final Map<String, Long> durations_ = new LinkedHashMap<String, Long>();
+
+	private IbvcResultFile(FilePath file){
+		file_ = file;
+	}
+
+	/**
+	 * Create a result file in the workspace if the installation supports it
+	 * 
+	 * @return Result file, or null if not supported or there's no workspace
+	 */
+	static IbvcResultFile create(IbvcInstallation ibvc, FilePath workspace) throws IOException, InterruptedException {
+		if(!ibvc.isResultFile()){
+			return null;
+		}
+		return create(workspace);
+	}
+
+	/**
+	 * Create a result file in the workspace
+	 * 
+	 * @return Result file, or null if there's no workspace
+	 */
+	static IbvcResultFile create(FilePath workspace) throws IOException, InterruptedException {
+		if(workspace == null){
+			return null;
+		}
+		FilePath ibvcDir = workspace.child(".ibvc");
+		ibvcDir.mkdirs();
+		return new IbvcResultFile(ibvcDir.createTempFile("result", ".jsonl"));
+	}
+
+	void addArgs(List<String> args){
+		args.add("--result-file");
+		args.add(file_.getRemote());
+	}
+
+	/**
+	 * Read the file IBVC wrote. Results of a previous launch with the same file are discarded.
+	 */
+	void read() throws IOException, InterruptedException {
+		ibvcRevision_ = null;
+		sfvcRevision_ = null;
+		files_ = null;
+		bytes_ = null;
+		durations_.clear();
+
+		if(!file_.exists()){
+			return;
+		}
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(file_.read(), "UTF-8"));
+		try {
+			String line;
+			while((line = reader.readLine()) != null){
+				line = line.trim();
+				if(line.length() == 0){
+					continue;
+				}
+				try {
+					parse(JSONObject.fromObject(line));
+				} catch (JSONException e) {
+					LOGGER.log(Level.FINE, "Skipping malformed IBVC result line: " + line, e);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void parse(JSONObject record){
+		String type = record.optString("type");
+		if("revision".equals(type)){
+			ibvcRevision_ = record.optString("ibvcRevision", null);
+			sfvcRevision_ = record.optString("sfvcRevision", null);
+		}
+		else if("transfer".equals(type)){
+			files_ = record.has("files") ? record.getLong("files") : null;
+			bytes_ = record.has("bytes") ? record.getLong("bytes") : null;
+		}
+		else if("phase".equals(type) && record.has("name") && record.has("millis")){
+			durations_.put(record.getString("name"), record.getLong("millis"));
+		}
+	}
+
+	void delete() throws IOException, InterruptedException {
+		file_.delete();
+	}
+
+	/**
+	 * Revisions IBVC reported, preferring the result file over console output
+	 * 
+	 * @param result Result file, or null
+	 * @return Revisions, or null if IBVC reported none
+	 */
+	static IbvcRevisionState revisions(IbvcResultFile result, BestMatchOutputStream out){
+		if((result != null) && (result.ibvcRevision_ != null) && (result.sfvcRevision_ != null)){
+			return new IbvcRevisionState(result.ibvcRevision_, result.sfvcRevision_);
+		}
+		if(out.getIbvcRevision() != null){
+			return new IbvcRevisionState(out.getIbvcRevision(), out.getSfvcRevision());
+		}
+		return null;
+	}
+
+	/**
+	 * Files transferred, or null if not reported
+	 */
+	Long getFiles(){
+		return files_;
+	}
+
+	/**
+	 * Bytes transferred, or null if not reported
+	 */
+	Long getBytes(){
+		return bytes_;
+	}
+
+	/**
+	 * Durations of IBVC's internal phases, by name
+	 */
+	Map<String, Long> getDurations(){
+		return Collections.unmodifiableMap(durations_);
+	}
+}
@@ -0,0 +1,138 @@
+package jenkins.plugins.Ibvc;
+
+import java.util.Calendar;
+import hudson.Extension;
+import hudson.util.FormValidation;
+import jenkins.model.GlobalConfiguration;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Global IBVC repository retention policy, applied by {@link IbvcPurge} in an off-peak window
+ * instead of purging inline with every checkin.
+ * <p>
+ * Revisions checked in with "keep" are never purged by IBVC.
+ */
+@Extension
+public class IbvcRetention extends GlobalConfiguration {
+
+	private int keepRevisions_ = 0;
+	private int maxAgeDays_ = 0;
+	private int offPeakStart_ = 0;
+	private int offPeakEnd_ = 6;
+	private int maxConcurrentPurges_ = 1;
+
+	public IbvcRetention(){
+		load();
+	}
+
+	public static IbvcRetention get(){
+		return GlobalConfiguration.all().get(IbvcRetention.class);
+	}
+
+	/**
+	 * Whether any limit is set. Checkins then never purge themselves.
+	 */
+	public boolean isEnabled(){
+		return (keepRevisions_ > 0) || (maxAgeDays_ > 0);
+	}
+
+	/**
+	 * Whether the given time is in the off-peak window. The window may wrap around midnight, and is the whole day if start and end are equal.
+	 */
+	boolean isOffPeak(Calendar now){
+		int hour = now.get(Calendar.HOUR_OF_DAY);
+		if (offPeakStart_ == offPeakEnd_){
+			return true;
+		}
+		if (offPeakStart_ < offPeakEnd_){
+			return (hour >= offPeakStart_) && (hour < offPeakEnd_);
+		}
+		return (hour >= offPeakStart_) || (hour < offPeakEnd_);
+	}
+
+	/**
+	 * Revisions kept per configuration and parameters, 0 for no limit
+	 */
+	public int getKeepRevisions(){
+		return keepRevisions_;
+	}
+	@DataBoundSetter
+	public void setKeepRevisions(int keepRevisions){
+		keepRevisions_ = Math.max(keepRevisions, 0);
+	}
+
+	/**
+	 * Days revisions are kept, 0 for no limit
+	 */
+	public int getMaxAgeDays(){
+		return maxAgeDays_;
+	}
+	@DataBoundSetter
+	public void setMaxAgeDays(int maxAgeDays){
+		maxAgeDays_ = Math.max(maxAgeDays, 0);
+	}
+
+	/**
+	 * Hour of day the off-peak window starts
+	 */
+	public int getOffPeakStart(){
+		return offPeakStart_;
+	}
+	@DataBoundSetter
+	public void setOffPeakStart(int offPeakStart){
+		offPeakStart_ = hour(offPeakStart);
+	}
+
+	/**
+	 * Hour of day the off-peak window ends
+	 */
+	public int getOffPeakEnd(){
+		return offPeakEnd_;
+	}
+	@DataBoundSetter
+	public void setOffPeakEnd(int offPeakEnd){
+		offPeakEnd_ = hour(offPeakEnd);
+	}
+
+	/**
+	 * Maximal count of IBVC purges running at once over all nodes
+	 */
+	public int getMaxConcurrentPurges(){
+		return maxConcurrentPurges_;
+	}
+	@DataBoundSetter
+	public void setMaxConcurrentPurges(int maxConcurrentPurges){
+		maxConcurrentPurges_ = Math.max(maxConcurrentPurges, 1);
+	}
+
+	private static int hour(int h){
+		return Math.min(Math.max(h, 0), 23);
+	}
+
+	@Override
+	public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+		req.bindJSON(this, json);
+		save();
+		return true;
+	}
+
+	public FormValidation doCheckOffPeakStart(@QueryParameter int value){
+		return checkHour(value);
+	}
+
+	public FormValidation doCheckOffPeakEnd(@QueryParameter int value){
+		return checkHour(value);
+	}
+
+	private static FormValidation checkHour(int value){
+		return ((value >= 0) && (value <= 23)) ? FormValidation.ok() : FormValidation.error(Messages.IBVC_invalid_hour());
+	}
+
+	@Override
+	public String getDisplayName(){
+		return Messages.IBVC_retention();
+	}
+}
@@ -0,0 +1,205 @@
+package jenkins.plugins.Ibvc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * Controller-side index of known SFVC to IBVC revisions, per IBVC repository and parameters, see {@link #scope}.
+ * <p>
+ * Filled from successful checkins and from best-match results of checkouts. 
+ * A checkout of a target SFVC revision that is in the index checks out the indexed IBVC revision 
+ * directly instead of searching for the best-match.
+ * <p>
+ * Entries are evicted when the index grows over {@link #MAX_ENTRIES} (least recently used first)
+ * or when they weren't used for {@link #MAX_AGE_DAYS} days. 
+ * The index is saved to JENKINS_HOME shortly after it changes.
+ */
+public class IbvcRevisionIndex implements Saveable {
+
+	private static final Logger LOGGER = Logger.getLogger(IbvcRevisionIndex.class.getName());
+
+	static final int MAX_ENTRIES = Integer.getInteger(IbvcRevisionIndex.class.getName() + ".maxEntries", 10000);
+	static final int MAX_AGE_DAYS = Integer.getInteger(IbvcRevisionIndex.class.getName() + ".maxAgeDays", 30);
+	private static final long SAVE_DELAY_SECONDS = 10;
+
+	private static IbvcRevisionIndex instance_ = null;
+
+	private static final class Entry {
+		final String ibvcRevision_;
+		long used_;
+
+		Entry(String ibvcRevision){
+			ibvcRevision_ = ibvcRevision;
+			used_ = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Access ordered, least recently used first
+	 */
+	private LinkedHashMap<String, Entry> entries_ = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	private transient boolean saveScheduled_ = false;
+
+	private IbvcRevisionIndex(){
+	}
+
+	public static synchronized IbvcRevisionIndex get(){
+		if(instance_ == null){
+			instance_ = new IbvcRevisionIndex();
+			XmlFile file = getConfigFile();
+			if(file.exists()){
+				try {
+					file.unmarshal(instance_);
+
+					// XStream restores an insertion ordered map
+					LinkedHashMap<String, Entry> loaded = instance_.entries_;
+					instance_.entries_ = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+					instance_.entries_.putAll(loaded);
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Failed to load IBVC revision index", e);
+				}
+			}
+		}
+		return instance_;
+	}
+
+	private static XmlFile getConfigFile(){
+		return new XmlFile(Jenkins.XSTREAM2, new File(Jenkins.getInstance().getRootDir(), IbvcRevisionIndex.class.getName() + ".xml"));
+	}
+
+	/**
+	 * Identity of the IBVC repository of a configuration file. An absolute path is the same repository for all jobs.
+	 * A relative path, including IBVC's default, resolves in each job's workspace, so it is qualified with the job's full name.
+	 * <p>
+	 * Shared by the revision index, {@link IbvcPurge} and {@link IbvcRepositoryPool}.
+	 * {@link IbvcPollCache} keys on the query node instead, see {@link IbvcCheckout#pollKey}.
+	 *
+	 * @param jobFullName Full name of the job that uses the configuration
+	 * @param ibvcConfig Expanded IBVC configuration file, empty for IBVC's default
+	 */
+	public static String repository(String jobFullName, String ibvcConfig){
+		ibvcConfig = Util.fixNull(ibvcConfig);
+		if(isAbsolute(ibvcConfig)){
+			return ibvcConfig;
+		}
+		return String.format("%s#%s", jobFullName, ibvcConfig);
+	}
+
+	/**
+	 * Absolute path on any node's platform, which may differ from the controller's
+	 */
+	static boolean isAbsolute(String path){
+		return path.startsWith("/") || path.startsWith("\\") || path.matches("^[A-Za-z]:[\\\\/].*");
+	}
+
+	/**
+	 * Scope of revisions: IBVC repository, see {@link #repository}, and parameters, sorted by name.
+	 */
+	public static String scope(String jobFullName, String ibvcConfig, Map<String, String> sortedParameters){
+		return String.format("%s\n%s", repository(jobFullName, ibvcConfig), sortedParameters);
+	}
+
+	private static String key(String scope, String sfvcRevision){
+		return scope + "\n" + sfvcRevision;
+	}
+
+	/**
+	 * @return IBVC revision that was checked in for exactly this SFVC revision, or null
+	 */
+	public synchronized String lookup(String scope, String sfvcRevision){
+		if((sfvcRevision == null) || (sfvcRevision.length() == 0)){
+			return null;
+		}
+
+		Entry e = entries_.get(key(scope, sfvcRevision));
+		if(e == null){
+			return null;
+		}
+		if(isExpired(e, System.currentTimeMillis())){
+			entries_.remove(key(scope, sfvcRevision));
+			scheduleSave();
+			return null;
+		}
+		e.used_ = System.currentTimeMillis();
+		return e.ibvcRevision_;
+	}
+
+	public synchronized void put(String scope, String sfvcRevision, String ibvcRevision){
+		if((sfvcRevision == null) || (ibvcRevision == null)){
+			return;
+		}
+
+		String key = key(scope, sfvcRevision);
+		Entry e = entries_.get(key);
+		if((e != null) && e.ibvcRevision_.equals(ibvcRevision)){
+			e.used_ = System.currentTimeMillis();
+			return;
+		}
+
+		entries_.put(key, new Entry(ibvcRevision));
+		evict();
+		scheduleSave();
+	}
+
+	/**
+	 * Forget a revision that IBVC failed to check out, e.g. because it was purged
+	 */
+	public synchronized void remove(String scope, String sfvcRevision){
+		if(entries_.remove(key(scope, sfvcRevision)) != null){
+			scheduleSave();
+		}
+	}
+
+	public synchronized int size(){
+		return entries_.size();
+	}
+
+	private boolean isExpired(Entry e, long now){
+		return now - e.used_ > TimeUnit.DAYS.toMillis(MAX_AGE_DAYS);
+	}
+
+	private void evict(){
+		long now = System.currentTimeMillis();
+		for(Iterator<Entry> it = entries_.values().iterator(); it.hasNext(); ){
+			Entry e = it.next();
+			if((entries_.size() > MAX_ENTRIES) || isExpired(e, now)){
+				it.remove();
+			}
+		}
+	}
+
+	private void scheduleSave(){
+		if(saveScheduled_){
+			return;
+		}
+		saveScheduled_ = true;
+		Timer.get().schedule(new Runnable() {
+			public void run(){
+				try {
+					save();
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Failed to save IBVC revision index", e);
+				}
+			}
+		}, SAVE_DELAY_SECONDS, TimeUnit.SECONDS);
+	}
+
+	public synchronized void save() throws IOException {
+		saveScheduled_ = false;
+		evict();
+		getConfigFile().write(this);
+		SaveableListener.fireOnChange(this, getConfigFile());
+	}
+}
@@ -0,0 +1,35 @@
+package jenkins.plugins.Ibvc;
+
+import hudson.scm.SCMRevisionState;
+
+/**
+ * Best-match IBVC and SFVC revisions a build was checked out at.
+ * Used as the polling baseline of {@link IbvcSCMPlugin}.
+ */
+public class IbvcRevisionState extends SCMRevisionState {
+
+	private final String ibvcRevision_;
+	private final String sfvcRevision_;
+
+	public IbvcRevisionState(String ibvcRevision, String sfvcRevision){
+		ibvcRevision_ = ibvcRevision;
+		sfvcRevision_ = sfvcRevision;
+	}
+
+	public String getIbvcRevision(){
+		return ibvcRevision_;
+	}
+
+	public String getSfvcRevision(){
+		return sfvcRevision_;
+	}
+
+	public boolean isSameRevision(IbvcRevisionState other){
+		return (other != null) && ibvcRevision_.equals(other.ibvcRevision_) && sfvcRevision_.equals(other.sfvcRevision_);
+	}
+
+	@Override
+	public String toString(){
+		return String.format("IBVC revision %s, SFVC revision %s", ibvcRevision_, sfvcRevision_);
+	}
+}
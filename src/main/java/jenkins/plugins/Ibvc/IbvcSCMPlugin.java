@@ -1,32 +1,30 @@
 package jenkins.plugins.Ibvc;
 
-import hudson.AbortException;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.model.Job;
+import hudson.model.Node;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.scm.ChangeLogParser;
+import hudson.scm.PollingResult;
 import hudson.scm.SCM;
 import hudson.scm.SCMDescriptor;
 import hudson.scm.SCMRevisionState;
-import hudson.Proc;
-import hudson.Launcher.ProcStarter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.InterruptedException;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest;
-import java.util.ArrayList;
 import java.util.Map;
 import hudson.model.AbstractBuild;
-import hudson.model.Queue;
-import hudson.model.Result;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.Collection;
+import java.util.concurrent.Callable;
 
 public class IbvcSCMPlugin extends SCM {
 
@@ -35,9 +33,7 @@ public class IbvcSCMPlugin extends SCM {
     private final String addiotinalArguments_;
     private final Collection<IbvcParameter> parameters_;
     private final boolean ibvcCleanCheckout_;
-    
-    private String bestMatchSfvcRev_ = null;
-    private String bestMatchIbvcRev_ = null;
+    private final IbvcMtimeAudit mtimeAudit_;
 
     @DataBoundConstructor
     public IbvcSCMPlugin(
@@ -46,18 +42,21 @@ public class IbvcSCMPlugin extends SCM {
 		, boolean ibvcCleanCheckout
 		, String addiotinalArguments
 		, Collection<IbvcParameter> parameters
+		, IbvcMtimeAudit mtimeAudit
 		)
     {
+    	ibvcConfig = Util.fixNull(ibvcConfig);
     	if(ibvcConfig.length() > 0){
 		    File file1 = new File(ibvcConfig);
 		    ibvcConfig = file1.getPath();
     	}
 
 	    ibvcConfig_ = ibvcConfig;
-		sfvcRevision_ = sfvcRevision;
+		sfvcRevision_ = Util.fixNull(sfvcRevision);
 		ibvcCleanCheckout_ = ibvcCleanCheckout;
-		addiotinalArguments_ = addiotinalArguments;
+		addiotinalArguments_ = Util.fixNull(addiotinalArguments);
 		parameters_ = parameters;
+		mtimeAudit_ = mtimeAudit;
     }
 	
 	public String getIbvcConfig(){
@@ -74,6 +73,12 @@ public class IbvcSCMPlugin extends SCM {
 	}
 	public Collection<IbvcParameter> getParameters(){
 		return parameters_;
+	}
+	/**
+	 * Post-checkout modification time audit, or null
+	 */
+	public IbvcMtimeAudit getMtimeAudit(){
+		return mtimeAudit_;
 	}	
 	
 	/**
@@ -88,6 +93,10 @@ public class IbvcSCMPlugin extends SCM {
 	 */
 	@Override
 	public void buildEnvVars(AbstractBuild<?,?> build, Map<String,String> env){
+		buildEnvVars(build.getAction(IbvcBestMatchAction.class), env);
+	}
+
+	void buildEnvVars(IbvcBestMatchAction bestMatch, Map<String,String> env){
     	
     	if(!env.containsKey("IBVC_CONFIG")){
     		env.put("IBVC_CONFIG", ibvcConfig_);
@@ -106,21 +115,15 @@ public class IbvcSCMPlugin extends SCM {
 	    	}
     	}
     	
-    	if((bestMatchIbvcRev_ != null) && (bestMatchIbvcRev_.length() > 0)){
-    		env.put("IBVC_BEST_MATCH_IBVC_REV", bestMatchIbvcRev_);
-    	}
-    	
-    	if((bestMatchSfvcRev_ != null) && (bestMatchSfvcRev_.length() > 0)){
-    		env.put("IBVC_BEST_MATCH_SFVC_REV", bestMatchSfvcRev_);
+    	if(bestMatch != null){
+    		env.put("IBVC_BEST_MATCH_IBVC_REV", bestMatch.getIbvcRevision());
+    		env.put("IBVC_BEST_MATCH_SFVC_REV", bestMatch.getSfvcRevision());
     	}
     }
 
 	/**
-	 * Launch IBVC with parameters
-	 * IBVC out and err are streamed to console log
-	 * Exit code is parsed to check IBVC result
-	 * On successful exit, IBVC out is parsed to detect best-match IBVC and SFVC revisions.
-	 * Revisions are kept to later be set in build environment variables.
+	 * Launch IBVC checkout, see {@link IbvcCheckout#checkout}, then {@link IbvcMtimeAudit} if enabled.
+	 * Revisions are also the build's polling baseline.
 	 *  
 	 */
     @Override
@@ -133,100 +136,130 @@ public class IbvcSCMPlugin extends SCM {
         SCMRevisionState baseline
 		) throws IOException, InterruptedException
     {    	
-	    if (build.getParent() instanceof Queue.FlyweightTask){
+	    if (Util.isFlyweight(build)){
 	        listener.getLogger().println( Messages.Skipping_FlyweightTask());
 	        return;
 	    }
+		long startNanos = System.nanoTime();
+		long startedAt = System.currentTimeMillis();
 
-	    final EnvVars vars = build.getEnvironment(listener);
-    	
-    	// Detect home, license file from node properties
-		String ibvcPath = vars.expand(Util.nodeIbvcPath(build));
-		String ibvcLic = vars.expand(Util.nodeLicensePath(build));
-
-		ArrayList<String> args = new ArrayList<String>();
-        ProcStarter ps = launcher.new ProcStarter();
-        
-        // Build command line
-		args.add(ibvcPath);
-		
-		if(ibvcConfig_.length() > 0){
-		    args.add("--ibvc-config");
-			args.add(vars.expand(ibvcConfig_));
-		}
-		
-		if( ibvcLic.length() > 0){
-			args.add("--lic-file");
-			args.add(vars.expand(ibvcLic));
-		}
-			
-		if( sfvcRevision_.length() > 0){
-			args.add("--sfvc-revision");
-			args.add(vars.expand(sfvcRevision_));
-		}
-		
-		if (ibvcCleanCheckout_){
-			args.add("--ibvc-clean-checkout");
-		}			
-		
-		if( addiotinalArguments_.length() > 0){
-			args.add(vars.expand(addiotinalArguments_));
+		// IBVC writes the file delta on the node. It is copied to the change log after checkout
+		FilePath deltaFile = null;
+		if (changelogFile != null){
+			FilePath ibvcDir = workspace.child(".ibvc");
+			ibvcDir.mkdirs();
+			deltaFile = ibvcDir.createTempFile("delta", ".txt");
 		}
 
-		if( parameters_ != null){
-			for( IbvcParameter p : parameters_){
-				args.add( "--param-" + vars.expand(p.getName()));
-				args.add( vars.expand(p.getValue()));
+		IbvcRevisionState state;
+		try {
+			state = newCheckout().checkout(null, build, workspace, launcher, listener, deltaFile);
+			if (mtimeAudit_ != null){
+				mtimeAudit_.audit(build, workspace, listener);
+			}
+			if (deltaFile != null){
+				writeChangeLog(deltaFile, changelogFile);
+			}
+		} finally {
+			if (deltaFile != null){
+				deltaFile.delete();
 			}
+			Node node = Util.workspaceNode(workspace);
+			IbvcTimingAction.recordOverhead(build, "checkout", (node != null) ? node.getNodeName() : "", startNanos, startedAt);
 		}
 
-        ps.cmds(args);
-        ps.stderr(listener.getLogger());
-        ps.stdout(listener.getLogger());
-        
-        try {
-        	Proc ibPrc = launcher.launch(ps);
-        	int ibExitCode = ibPrc.join();
+        if(state != null){
+	        build.addAction(state);
+        }
+	}
+
+    @Override
+    public SCMRevisionState calcRevisionsFromBuild(
+        Run<?,?> build,
+        FilePath workspace,
+        Launcher launcher,
+        TaskListener listener
+        ) throws IOException, InterruptedException
+    {
+    	IbvcRevisionState state = build.getAction(IbvcRevisionState.class);
+    	return (state != null) ? state : SCMRevisionState.NONE;
+    }
+
+	/**
+	 * Polling queries IBVC without a workspace, see {@link IbvcPollCache#queryNode()}
+	 */
+    @Override
+    public boolean requiresWorkspaceForPolling(){
+    	return false;
+    }
+
+	/**
+	 * Query IBVC for the revision a checkout would get now and compare it to the baseline.
+	 * Query results are shared by all jobs with the same configuration, target revision and parameters
+	 * for {@link IbvcPollCache#TTL}.
+	 */
+    @Override
+    public PollingResult compareRemoteRevisionWith(
+        Job<?,?> project,
+        Launcher launcher,
+        FilePath workspace,
+        final TaskListener listener,
+        SCMRevisionState baseline
+        ) throws IOException, InterruptedException
+    {
+    	final Node node = IbvcPollCache.queryNode();
+    	if(node == null){
+	        listener.getLogger().println(Messages.IBVC_node_offline(IbvcPollCache.NODE));
+			return PollingResult.NO_CHANGES;
+    	}
+    	final Launcher queryLauncher = node.createLauncher(listener);
+	    final EnvVars vars = project.getEnvironment(node, listener);
+
+		final IbvcCheckout checkout = newCheckout();
+		String key = checkout.pollKey(node, vars);
 
-        	// Analyze exit code.
-        	switch( ibExitCode){
-        	case 0:
-    	        listener.getLogger().println( Messages.IBVC_finished_successfully());
-    	        break;
-    	        
-			default:
-				build.setResult(Result.FAILURE);
-				throw new AbortException(Messages.IBVC_terminated_with_errors());
-        	}
+		IbvcRevisionState remote = IbvcPollCache.query(key, new Callable<IbvcRevisionState>() {
+			public IbvcRevisionState call() throws IOException, InterruptedException {
+				return checkout.query(node, queryLauncher, listener, vars);
+			}
+		});
+		
+		if(remote == null){
+	        listener.getLogger().println(Messages.IBVC_no_best_match());
+			return PollingResult.NO_CHANGES;
+		}
+		listener.getLogger().println(String.format("%s: %s", Messages.IBVC_latest_best_match(), remote));
 
-		} catch (IOException e) {
-	        listener.getLogger().println( e.getMessage());
-			throw e;
-		} catch (InterruptedException e) {
-	        listener.getLogger().println( String.format( "%s: %s", Messages.IBVC_failed_to_finish_properly(), e.getMessage()));
-			throw e;
+		if(!(baseline instanceof IbvcRevisionState)){
+			return PollingResult.BUILD_NOW;
 		}
-        
-        // We get here after successful checkout. Parsing best-match
-        Pattern regex = Pattern.compile(".*Checking out IBVC revision (?<IBVC>\\w+) and SFVC revision (?<SFVC>\\w+)$");
-        for( String line : build.getLog(10000)){
-        	Matcher m = regex.matcher(line);
-        	if(m.matches()){
-        		bestMatchIbvcRev_ = m.group("IBVC");
-        		bestMatchSfvcRev_ = m.group("SFVC");
+		
+		PollingResult.Change change = remote.isSameRevision((IbvcRevisionState)baseline) ? PollingResult.Change.NONE : PollingResult.Change.SIGNIFICANT;
+		return new PollingResult(baseline, remote, change);
+    }
 
-    	        listener.getLogger().println( String.format( 
-    	        		"Will write IBVC_BEST_MATCH_SFVC_REV='%s' and IBVC_BEST_MATCH_IBVC_REV='%s' to build environment"
-    	        		, bestMatchSfvcRev_
-    	        		, bestMatchIbvcRev_));
-        		break;
-        	}
-        }
-	}
+    IbvcCheckout newCheckout(){
+    	return new IbvcCheckout(ibvcConfig_, sfvcRevision_, ibvcCleanCheckout_, addiotinalArguments_, parameters_);
+    }
+
+	/**
+	 * Copy IBVC file delta from the node to the build change log, which stays empty if the installation doesn't write deltas.
+	 */
+    private static void writeChangeLog(FilePath deltaFile, File changelogFile) throws IOException, InterruptedException
+    {
+    	OutputStream os = new FileOutputStream(changelogFile);
+    	try {
+    		if (deltaFile.exists()){
+    			deltaFile.copyTo(os);
+    		}
+    	} finally {
+    		os.close();
+    	}
+    }
 
     @Override
     public ChangeLogParser createChangeLogParser() {
-		return null;
+		return new IbvcChangeLogParser();
     }
 
     @Extension
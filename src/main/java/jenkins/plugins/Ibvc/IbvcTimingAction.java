@@ -0,0 +1,222 @@
+package jenkins.plugins.Ibvc;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Timings of the IBVC processes a build launched: checkout, checkout-best-match and checkin,
+ * the plugin's own overhead in these steps, and waits for a repository slot.
+ * Exported in the build's remote API, and rolled up per job and node in {@link IbvcMetrics}.
+ */
+@ExportedBean
+public class IbvcTimingAction implements RunAction2 {
+
+	static final String OVERHEAD = " overhead";
+	static final String WAIT = " wait";
+
+	private final List<Phase> phases_ = new CopyOnWriteArrayList<Phase>();
+
+	private transient Run<?,?> run_;
+
+	/**
+	 * One IBVC process
+	 */
+	@ExportedBean(defaultVisibility = 2)
+	public static final class Phase {
+		private final String phase_;
+		private final String nodeName_;
+		private final long startedAt_;
+		private final long runMillis_;
+		private final long firstOutputMillis_;
+		private final long outputBytes_;
+		private final int exitCode_;
+		private final Long files_;
+		private final Long transferredBytes_;
+		private final Map<String, Long> durations_;
+
+		Phase(String phase, String nodeName, long startedAt, long runMillis, long firstOutputMillis, long outputBytes, int exitCode, IbvcResultFile result){
+			phase_ = phase;
+			nodeName_ = nodeName;
+			startedAt_ = startedAt;
+			runMillis_ = runMillis;
+			firstOutputMillis_ = firstOutputMillis;
+			outputBytes_ = outputBytes;
+			exitCode_ = exitCode;
+			files_ = (result != null) ? result.getFiles() : null;
+			transferredBytes_ = (result != null) ? result.getBytes() : null;
+			durations_ = ((result != null) && !result.getDurations().isEmpty()) ? new LinkedHashMap<String, Long>(result.getDurations()) : null;
+		}
+
+		@Exported
+		public String getPhase(){
+			return phase_;
+		}
+		@Exported
+		public String getNodeName(){
+			return nodeName_;
+		}
+		@Exported
+		public long getStartedAt(){
+			return startedAt_;
+		}
+		/**
+		 * Launch to exit
+		 */
+		@Exported
+		public long getRunMillis(){
+			return runMillis_;
+		}
+		/**
+		 * Launch to first standard output, -1 if IBVC wrote nothing
+		 */
+		@Exported
+		public long getFirstOutputMillis(){
+			return firstOutputMillis_;
+		}
+		/**
+		 * Bytes of standard output
+		 */
+		@Exported
+		public long getOutputBytes(){
+			return outputBytes_;
+		}
+		@Exported
+		public int getExitCode(){
+			return exitCode_;
+		}
+		/**
+		 * Files transferred, if IBVC reported it in {@link IbvcResultFile}
+		 */
+		@Exported
+		public Long getFiles(){
+			return files_;
+		}
+		/**
+		 * Bytes transferred, if IBVC reported it in {@link IbvcResultFile}
+		 */
+		@Exported
+		public Long getTransferredBytes(){
+			return transferredBytes_;
+		}
+		/**
+		 * Durations of IBVC's internal phases, if IBVC reported them in {@link IbvcResultFile}
+		 */
+		@Exported
+		public Map<String, Long> getDurations(){
+			return durations_;
+		}
+	}
+
+	/**
+	 * Record an IBVC process that has exited.
+	 * 
+	 * @param phase IBVC operation
+	 * @param nodeName Node IBVC ran on, empty for the master
+	 * @param startNanos {@link System#nanoTime()} before launch
+	 * @param out IBVC standard output
+	 * @param result IBVC result file, or null
+	 */
+	static void record(Run<?,?> build, String phase, String nodeName, long startNanos, BestMatchOutputStream out, int exitCode, IbvcResultFile result){
+		long now = System.nanoTime();
+		long runMillis = TimeUnit.NANOSECONDS.toMillis(now - startNanos);
+		long firstOutputMillis = (out.getBytes() > 0) ? TimeUnit.NANOSECONDS.toMillis(out.getFirstOutputNanos() - startNanos) : -1;
+		if((nodeName == null) || (nodeName.length() == 0)){
+			nodeName = "master";
+		}
+
+		add(build, new Phase(phase, nodeName, System.currentTimeMillis() - runMillis, runMillis, firstOutputMillis, out.getBytes(), exitCode, result));
+	}
+
+	/**
+	 * Record the plugin's own time in a build step: the step's wall time less the IBVC processes it launched.
+	 * Recorded as a phase named after the step with {@link #OVERHEAD}, so it is rolled up like IBVC timings.
+	 * <p>
+	 * IBVC processes are those recorded since the step started, so overlapping steps of a Pipeline build share them.
+	 *
+	 * @param step IBVC operation of the step
+	 * @param nodeName Node the step ran on, empty for the master
+	 * @param startNanos {@link System#nanoTime()} when the step started
+	 * @param startedAt {@link System#currentTimeMillis()} when the step started
+	 */
+	static void recordOverhead(Run<?,?> build, String step, String nodeName, long startNanos, long startedAt){
+		long wallMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+		long ibvcMillis = 0;
+		IbvcTimingAction action = build.getAction(IbvcTimingAction.class);
+		if(action != null){
+			for(Phase p : action.phases_){
+				if((p.startedAt_ >= startedAt) && !p.phase_.endsWith(OVERHEAD)){
+					ibvcMillis += p.runMillis_;
+				}
+			}
+		}
+		if((nodeName == null) || (nodeName.length() == 0)){
+			nodeName = "master";
+		}
+		add(build, new Phase(step + OVERHEAD, nodeName, startedAt, Math.max(wallMillis - ibvcMillis, 0), -1, 0, 0, null));
+	}
+
+	/**
+	 * Record a wait for an {@link IbvcRepositoryPool} slot, as a phase named after the operation with {@link #WAIT}.
+	 * Waits during a step don't count as its overhead.
+	 *
+	 * @param operation {@link IbvcRepositoryPool#CHECKOUT} or {@link IbvcRepositoryPool#CHECKIN}
+	 * @param nodeName Node of the operation, empty for the master
+	 * @param startedAt {@link System#currentTimeMillis()} when the wait started, in the queue or in the build
+	 */
+	static void recordWait(Run<?,?> build, String operation, String nodeName, long startedAt, long waitMillis){
+		if((nodeName == null) || (nodeName.length() == 0)){
+			nodeName = "master";
+		}
+		add(build, new Phase(operation + WAIT, nodeName, startedAt, waitMillis, -1, 0, 0, null));
+	}
+
+	private static void add(Run<?,?> build, Phase p){
+		IbvcTimingAction action;
+		synchronized (build){
+			action = build.getAction(IbvcTimingAction.class);
+			if(action == null){
+				action = new IbvcTimingAction();
+				build.addAction(action);
+			}
+		}
+		action.phases_.add(p);
+		IbvcMetrics.get().record(build.getParent().getFullName(), p);
+	}
+
+	@Exported(inline = true)
+	public List<Phase> getPhases(){
+		return new ArrayList<Phase>(phases_);
+	}
+
+	public Run<?,?> getRun(){
+		return run_;
+	}
+
+	public void onAttached(Run<?,?> r){
+		run_ = r;
+	}
+
+	public void onLoad(Run<?,?> r){
+		run_ = r;
+	}
+
+	public String getIconFileName(){
+		return "clock.png";
+	}
+
+	public String getDisplayName(){
+		return Messages.IBVC_timings();
+	}
+
+	public String getUrlName(){
+		return "ibvcTimings";
+	}
+}
@@ -0,0 +1,369 @@
+package jenkins.plugins.Ibvc;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import hudson.Launcher;
+import hudson.remoting.Channel;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+import jenkins.security.MasterToSlaveCallable;
+import net.sf.json.JSONArray;
+
+/**
+ * Long-lived IBVC worker processes on nodes whose IBVC installation supports it, see {@link IbvcInstallation#isWorker()}.
+ * A worker is started with <code>--operation serve</code> and keeps license, configuration and repository metadata loaded between operations.
+ * <p>
+ * Protocol, one operation at a time per worker: the plugin writes the command line without the executable as a JSON array on one line to the worker's standard input.
+ * The worker writes the operation's output to its standard output, then a line with {@link #EXIT_MARKER} and the exit code.
+ * Its standard error goes to the current operation's error stream.
+ * <p>
+ * Each node keeps one idle worker per executable, operations running at the same time start more workers which exit when done.
+ * A reaper on the node stops workers that were idle for {@link #IDLE_MINUTES}.
+ * A worker that died is replaced and gets the request again; if it dies during an operation, the operation fails.
+ * <p>
+ * Workers are started by the node's JVM, with its environment and working directory, as undecorated launchers start IBVC.
+ * Operations through a decorated launcher, e.g. one that adds environment variables or wraps commands, start IBVC every time.
+ */
+class IbvcWorker {
+
+	private static final Logger LOGGER = Logger.getLogger(IbvcWorker.class.getName());
+
+	static final String EXIT_MARKER = "IBVC-EXIT ";
+
+	/**
+	 * Idle workers are stopped after that
+	 */
+	static final long IDLE_MINUTES = Long.getLong(IbvcWorker.class.getName() + ".idleMinutes", 30);
+
+	/**
+	 * How often the reaper looks for idle workers
+	 */
+	static final long REAP_SECONDS = 60;
+
+	/**
+	 * Exit code reported when the worker died during an operation
+	 */
+	private static final int DIED = -1;
+
+	/**
+	 * The worker died before it got the request, another one may take it
+	 */
+	private static final int NOT_ACCEPTED = -2;
+
+	/**
+	 * Launch IBVC with the given command line, through a worker on the launcher's node if the installation supports it,
+	 * otherwise as a new process.
+	 *
+	 * @return IBVC exit code
+	 */
+	static int launch(IbvcInstallation ibvc, Launcher launcher, List<String> args, OutputStream out, OutputStream err) throws IOException, InterruptedException {
+		VirtualChannel channel = launcher.getChannel();
+		if (!ibvc.isWorker() || (channel == null) || isDecorated(launcher)){
+			return launcher.launch().cmds(args).stdout(out).stderr(err).join();
+		}
+
+		int exitCode;
+		try {
+			exitCode = channel.call(new Operation(args, new RemoteOutputStream(out), new RemoteOutputStream(err)));
+		} catch (IOException e) {
+			// On the local channel, the operation ran in this thread
+			if (Thread.interrupted()){
+				InterruptedException ie = new InterruptedException(e.getMessage());
+				ie.initCause(e);
+				throw ie;
+			}
+			throw e;
+		}
+		// Output may still be on its way from the node
+		if (channel instanceof Channel){
+			((Channel)channel).syncIO();
+		}
+		return exitCode;
+	}
+
+	/**
+	 * Whether the launcher changes how processes start, which a worker started by the node's JVM would bypass
+	 */
+	private static boolean isDecorated(Launcher launcher){
+		return (launcher.getClass() != Launcher.LocalLauncher.class) && (launcher.getClass() != Launcher.RemoteLauncher.class);
+	}
+
+	/**
+	 * Runs an operation on the node
+	 */
+	private static final class Operation extends MasterToSlaveCallable<Integer, IOException> {
+		private static final long serialVersionUID = 1L;
+
+		private final List<String> args_;
+		private final OutputStream out_;
+		private final OutputStream err_;
+
+		Operation(List<String> args, OutputStream out, OutputStream err){
+			args_ = new ArrayList<String>(args);
+			out_ = out;
+			err_ = err;
+		}
+
+		public Integer call() throws IOException {
+			String executable = args_.get(0);
+			String request = JSONArray.fromObject(args_.subList(1, args_.size())).toString();
+			try {
+				for (int attempt = 0; ; ++attempt){
+					Worker worker = Pool.take(executable, err_);
+					int exitCode = DIED;
+					try {
+						exitCode = worker.run(request, out_, err_);
+					} finally {
+						out_.flush();
+						err_.flush();
+						Pool.release(executable, worker, exitCode >= 0);
+					}
+					if ((exitCode == NOT_ACCEPTED) && (attempt == 0)){
+						continue;
+					}
+					if (exitCode < 0){
+						err_.write((Messages.IBVC_worker_died() + "\n").getBytes(Charset.defaultCharset()));
+					}
+					return exitCode;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(Messages.IBVC_failed_to_finish_properly(), e);
+			}
+		}
+	}
+
+	/**
+	 * Idle workers of this JVM by executable
+	 */
+	private static final class Pool {
+		private static final Map<String, Deque<Worker>> idle_ = new HashMap<String, Deque<Worker>>();
+		private static ScheduledExecutorService reaper_ = null; // Guarded by idle_
+
+		static Worker take(String executable, OutputStream err) throws IOException {
+			synchronized (idle_){
+				Deque<Worker> workers = idle_.get(executable);
+				while ((workers != null) && !workers.isEmpty()){
+					Worker p = workers.pop();
+					if (p.isAlive() && !p.isIdleFor(TimeUnit.MINUTES.toMillis(IDLE_MINUTES))){
+						return p;
+					}
+					p.stop();
+				}
+			}
+			err.write((Messages.IBVC_worker_started(executable) + "\n").getBytes(Charset.defaultCharset()));
+			return Worker.start(executable);
+		}
+
+		static void release(String executable, Worker p, boolean ok){
+			synchronized (idle_){
+				Deque<Worker> workers = idle_.get(executable);
+				if (workers == null){
+					workers = new ArrayDeque<Worker>();
+					idle_.put(executable, workers);
+				}
+				if (ok && p.isAlive() && workers.isEmpty()){
+					workers.push(p);
+					startReaper();
+					return;
+				}
+			}
+			p.stop();
+		}
+
+		/**
+		 * Called with idle_ held
+		 */
+		private static void startReaper(){
+			if (reaper_ != null){
+				return;
+			}
+			reaper_ = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r){
+					Thread t = new Thread(r, "IBVC worker reaper");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			reaper_.scheduleWithFixedDelay(new Runnable() {
+				public void run(){
+					reap();
+				}
+			}, REAP_SECONDS, REAP_SECONDS, TimeUnit.SECONDS);
+		}
+
+		/**
+		 * Stop workers that died or were idle for too long
+		 */
+		static void reap(){
+			List<Worker> stopped = new ArrayList<Worker>();
+			synchronized (idle_){
+				for (Deque<Worker> workers : idle_.values()){
+					for (Iterator<Worker> i = workers.iterator(); i.hasNext();){
+						Worker p = i.next();
+						if (!p.isAlive() || p.isIdleFor(TimeUnit.MINUTES.toMillis(IDLE_MINUTES))){
+							i.remove();
+							stopped.add(p);
+						}
+					}
+				}
+			}
+			for (Worker p : stopped){
+				p.stop();
+			}
+		}
+	}
+
+	/**
+	 * A worker process
+	 */
+	private static final class Worker {
+		private final Process process_;
+		private final Writer in_;
+		private final BlockingQueue<Integer> exitCodes_ = new ArrayBlockingQueue<Integer>(1);
+		private volatile OutputStream out_;
+		private volatile OutputStream err_;
+		private volatile long idleSince_ = System.currentTimeMillis();
+
+		private Worker(Process process){
+			process_ = process;
+			in_ = new OutputStreamWriter(process.getOutputStream(), Charset.defaultCharset());
+		}
+
+		static Worker start(String executable) throws IOException {
+			final Worker p = new Worker(new ProcessBuilder(executable, "--operation", "serve").start());
+			Thread stdout = new Thread("IBVC worker stdout " + executable){
+				@Override
+				public void run(){
+					p.pumpOut();
+				}
+			};
+			Thread stderr = new Thread("IBVC worker stderr " + executable){
+				@Override
+				public void run(){
+					p.pumpErr();
+				}
+			};
+			stdout.setDaemon(true);
+			stderr.setDaemon(true);
+			stdout.start();
+			stderr.start();
+			return p;
+		}
+
+		/**
+		 * @return IBVC exit code, {@link #DIED} or {@link #NOT_ACCEPTED}
+		 */
+		int run(String request, OutputStream out, OutputStream err) throws IOException, InterruptedException {
+			exitCodes_.clear();
+			out_ = out;
+			err_ = err;
+			try {
+				try {
+					in_.write(request);
+					in_.write("\n");
+					in_.flush();
+				} catch (IOException e) {
+					LOGGER.log(Level.FINE, "IBVC worker didn't accept the request", e);
+					return NOT_ACCEPTED;
+				}
+				return exitCodes_.take();
+			} catch (InterruptedException e) {
+				// The worker is still busy with the aborted operation
+				stop();
+				throw e;
+			} finally {
+				out_ = null;
+				err_ = null;
+				idleSince_ = System.currentTimeMillis();
+			}
+		}
+
+		private void pumpOut(){
+			try {
+				BufferedReader r = new BufferedReader(new InputStreamReader(process_.getInputStream(), Charset.defaultCharset()));
+				String line;
+				while ((line = r.readLine()) != null){
+					if (line.startsWith(EXIT_MARKER)){
+						exitCodes_.offer(exitCode(line.substring(EXIT_MARKER.length())));
+						continue;
+					}
+					OutputStream out = out_;
+					if (out != null){
+						out.write((line + "\n").getBytes(Charset.defaultCharset()));
+					}
+				}
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "IBVC worker output failed", e);
+			}
+			exitCodes_.offer(DIED);
+		}
+
+		private void pumpErr(){
+			byte[] buf = new byte[8192];
+			try {
+				InputStream in = process_.getErrorStream();
+				int len;
+				while ((len = in.read(buf)) >= 0){
+					OutputStream err = err_;
+					if (err != null){
+						err.write(buf, 0, len);
+					}
+				}
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "IBVC worker error output failed", e);
+			}
+		}
+
+		private static int exitCode(String s){
+			try {
+				return Integer.parseInt(s.trim());
+			} catch (NumberFormatException e) {
+				return DIED;
+			}
+		}
+
+		boolean isAlive(){
+			try {
+				process_.exitValue();
+				return false;
+			} catch (IllegalThreadStateException e) {
+				return true;
+			}
+		}
+
+		boolean isIdleFor(long millis){
+			return (System.currentTimeMillis() - idleSince_) > millis;
+		}
+
+		void stop(){
+			try {
+				in_.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "Failed closing IBVC worker input", e);
+			}
+			process_.destroy();
+		}
+	}
+}
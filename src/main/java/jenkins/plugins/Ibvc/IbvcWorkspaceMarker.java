@@ -0,0 +1,146 @@
+package jenkins.plugins.Ibvc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Properties;
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Marker file a successful IBVC checkout leaves in the workspace, in <code>.ibvc/marker-<i>scope digest</i>.properties</code>.
+ * <p>
+ * It holds the checked out revisions and a fingerprint of the workspace's top level entries: names, sizes and modification times.
+ * A checkout of the same scope and revisions into a workspace whose fingerprint is unchanged is skipped.
+ * The fingerprint is computed on the node without descending into the workspace, so it is cheap but only detects top level changes.
+ */
+class IbvcWorkspaceMarker {
+
+	private static final String IBVC_DIR = ".ibvc";
+	private static final String IBVC_REVISION = "ibvcRevision";
+	private static final String SFVC_REVISION = "sfvcRevision";
+	private static final String FINGERPRINT = "fingerprint";
+
+	private static FilePath file(FilePath workspace, String scope){
+		return workspace.child(IBVC_DIR).child("marker-" + hudson.Util.getDigestOf(scope) + ".properties");
+	}
+
+	/**
+	 * @return Whether the workspace is at these revisions and unchanged since it was checked out
+	 */
+	static boolean matches(FilePath workspace, String scope, String ibvcRevision, String sfvcRevision) throws IOException, InterruptedException {
+		if(workspace == null){
+			return false;
+		}
+		return file(workspace, scope).act(new Matches(ibvcRevision, sfvcRevision));
+	}
+
+	/**
+	 * Record revisions after a successful checkout
+	 */
+	static void write(FilePath workspace, String scope, IbvcRevisionState state) throws IOException, InterruptedException {
+		if(workspace == null){
+			return;
+		}
+		file(workspace, scope).act(new Write(state.getIbvcRevision(), state.getSfvcRevision()));
+	}
+
+	/**
+	 * Drop the marker before IBVC changes the workspace, so a failed checkout is never skipped
+	 */
+	static void clear(FilePath workspace, String scope) throws IOException, InterruptedException {
+		if(workspace == null){
+			return;
+		}
+		file(workspace, scope).delete();
+	}
+
+	/**
+	 * @param marker Marker file, in the .ibvc folder of the workspace
+	 */
+	private static String fingerprint(File marker) throws IOException {
+		File workspace = marker.getParentFile().getParentFile();
+		String[] names = workspace.list();
+		if(names == null){
+			throw new IOException("Failed to list " + workspace);
+		}
+		Arrays.sort(names);
+
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		for(String name : names){
+			if(name.equals(IBVC_DIR)){
+				continue;
+			}
+			File f = new File(workspace, name);
+			md.update(String.format("%s|%d|%d\n", name, f.length(), f.lastModified()).getBytes("UTF-8"));
+		}
+		return hudson.Util.toHexString(md.digest());
+	}
+
+	private static final class Matches extends MasterToSlaveFileCallable<Boolean> {
+		private static final long serialVersionUID = 1L;
+
+		private final String ibvcRevision_;
+		private final String sfvcRevision_;
+
+		Matches(String ibvcRevision, String sfvcRevision){
+			ibvcRevision_ = ibvcRevision;
+			sfvcRevision_ = sfvcRevision;
+		}
+
+		public Boolean invoke(File marker, VirtualChannel channel) throws IOException, InterruptedException {
+			if(!marker.isFile()){
+				return false;
+			}
+			Properties p = new Properties();
+			InputStream in = new FileInputStream(marker);
+			try {
+				p.load(in);
+			} finally {
+				in.close();
+			}
+			return ibvcRevision_.equals(p.getProperty(IBVC_REVISION))
+					&& sfvcRevision_.equals(p.getProperty(SFVC_REVISION))
+					&& fingerprint(marker).equals(p.getProperty(FINGERPRINT));
+		}
+	}
+
+	private static final class Write extends MasterToSlaveFileCallable<Void> {
+		private static final long serialVersionUID = 1L;
+
+		private final String ibvcRevision_;
+		private final String sfvcRevision_;
+
+		Write(String ibvcRevision, String sfvcRevision){
+			ibvcRevision_ = ibvcRevision;
+			sfvcRevision_ = sfvcRevision;
+		}
+
+		public Void invoke(File marker, VirtualChannel channel) throws IOException, InterruptedException {
+			marker.getParentFile().mkdirs();
+			Properties p = new Properties();
+			p.setProperty(IBVC_REVISION, ibvcRevision_);
+			p.setProperty(SFVC_REVISION, sfvcRevision_);
+			p.setProperty(FINGERPRINT, fingerprint(marker));
+			OutputStream out = new FileOutputStream(marker);
+			try {
+				p.store(out, "IBVC checkout");
+			} finally {
+				out.close();
+			}
+			return null;
+		}
+	}
+}
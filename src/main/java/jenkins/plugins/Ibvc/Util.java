@@ -1,68 +1,177 @@
 package jenkins.plugins.Ibvc;
 
-import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
 import hudson.model.AbstractBuild;
+import hudson.model.Computer;
 import hudson.model.Node;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
 import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
 import hudson.slaves.NodeProperty;
+import hudson.tools.ToolProperty;
+import jenkins.model.Jenkins;
 
 public class Util {
 
-	public static String nodeIbvcPath(Run<?,?> build)
+	/**
+	 * Resolved installation of a node, valid as long as the node's {@link IbvcNodeProperties} and the IBVC installations are unchanged
+	 */
+	private static final class ResolvedInstallation {
+		final IbvcNodeProperties nodeProperties_;
+		final long version_;
+		final IbvcInstallation installation_;
+
+		ResolvedInstallation(IbvcNodeProperties nodeProperties, long version, IbvcInstallation installation){
+			nodeProperties_ = nodeProperties;
+			version_ = version;
+			installation_ = installation;
+		}
+	}
+
+	private static final ConcurrentMap<String, ResolvedInstallation> installations_ = new ConcurrentHashMap<String, ResolvedInstallation>();
+
+	/**
+	 * Get the IBVC installation of a node.
+	 * <p>
+	 * IBVC home and license file are taken from the node's {@link IbvcNodeProperties} if set.
+	 * Otherwise, from the first global IBVC installation, translated for the node, which runs auto-installers as needed.
+	 * Resolution is cached per node until node properties or installations change, or the node reconnects.
+	 * Paths are not expanded.
+	 */
+	public static IbvcInstallation nodeInstallation(Node node, TaskListener listener) throws IOException, InterruptedException
 	{
-		String home = "IBVC";
-		
-		AbstractBuild<?,?> builder = (AbstractBuild<?,?>)build;
-		if(builder == null){
-			return home;
+		String name = (node != null) ? node.getNodeName() : "";
+		IbvcNodeProperties np = nodeProperties(node);
+		IbvcInstallation.DescriptorImpl descriptor = installationDescriptor();
+		long version = (descriptor != null) ? descriptor.getVersion() : 0;
+
+		ResolvedInstallation r = installations_.get(name);
+		if((r != null) && (r.nodeProperties_ == np) && (r.version_ == version)){
+			return r.installation_;
 		}
-		
-		Node node = builder.getBuiltOn();
-		if(node != null){
-			for( NodeProperty<?> np : node.getNodeProperties()){
-				if( np instanceof IbvcNodeProperties){					
-					IbvcNodeProperties myNp = (IbvcNodeProperties)np;
-					
-					String tmp = myNp.getHome();
-					if(tmp.length() > 0){
-					    File file1 = new File(tmp);
-					    File file2 = new File(file1, home);
-					    home = file2.getPath();
-					}
-					break;
+
+		IbvcInstallation inst = resolve(node, np, descriptor, listener);
+		installations_.put(name, new ResolvedInstallation(np, version, inst));
+		return inst;
+	}
+
+	private static IbvcInstallation resolve(Node node, IbvcNodeProperties np, IbvcInstallation.DescriptorImpl descriptor, TaskListener listener) throws IOException, InterruptedException
+	{
+		IbvcInstallation global = null;
+		if(descriptor != null){
+			IbvcInstallation[] all = descriptor.getInstallations();
+			if(all.length > 0){
+				global = all[0];
+				if(node != null){
+					global = global.forNode(node, listener);
 				}
 			}
 		}
-		
-		return home;
+
+		String name = (global != null) ? global.getName() : "";
+		String home = (global != null) ? global.getHome() : "";
+		String license = (global != null) ? global.getLicense() : "";
+		boolean resultFile = (global != null) && global.isResultFile();
+		boolean worker = (global != null) && global.isWorker();
+		boolean deltaFile = (global != null) && global.isDeltaFile();
+		if(np != null){
+			if(np.getHome().length() > 0){
+				home = np.getHome();
+			}
+			if(np.getLicense().length() > 0){
+				license = np.getLicense();
+			}
+		}
+
+		return new IbvcInstallation(name, home, license, resultFile, worker, deltaFile, Collections.<ToolProperty<?>>emptyList());
 	}
 
-	public static String nodeLicensePath(Run<?,?> build)
-	{
-		String lic = "";
-		
-		AbstractBuild<?,?> builder = (AbstractBuild<?,?>)build;
-		if(builder == null){
-			return lic;
+	private static IbvcInstallation.DescriptorImpl installationDescriptor(){
+		Jenkins j = Jenkins.getInstance();
+		return (j != null) ? j.getDescriptorByType(IbvcInstallation.DescriptorImpl.class) : null;
+	}
+
+	static IbvcNodeProperties nodeProperties(Node node){
+		if(node == null){
+			return null;
 		}
-		
-		Node node = builder.getBuiltOn();
-		if(node != null){
-			for( NodeProperty<?> np : node.getNodeProperties()){
-				if( np instanceof IbvcNodeProperties){					
-					IbvcNodeProperties myNp = (IbvcNodeProperties)np;
-					
-					String tmp = myNp.getLicense();			
-					if( tmp.length() > 0){
-					    File file1 = new File(tmp);
-					    lic = file1.getPath();
-					}
-					break;
-				}
+		for( NodeProperty<?> np : node.getNodeProperties()){
+			if( np instanceof IbvcNodeProperties){
+				return (IbvcNodeProperties)np;
 			}
 		}
-		
-		return lic;
+		return null;
 	}
 
+	/**
+	 * Freestyle builds of flyweight tasks, such as matrix parent builds, have no real workspace and are skipped.
+	 * Pipeline jobs are flyweight too but their steps run on real nodes.
+	 */
+	public static boolean isFlyweight(Run<?,?> build){
+		return (build instanceof AbstractBuild) && (build.getParent() instanceof Queue.FlyweightTask);
+	}
+
+	/**
+	 * Add the values of build parameters to variables, for items that have no build yet
+	 *
+	 * @param parameters Parameters of a queue item, or null
+	 */
+	static void addParameters(EnvVars vars, ParametersAction parameters){
+		if(parameters == null){
+			return;
+		}
+		for(ParameterValue p : parameters){
+			if(p.getValue() != null){
+				vars.put(p.getName(), String.valueOf(p.getValue()));
+			}
+		}
+	}
+
+	/**
+	 * Whether the optional matrix-project plugin is installed. Classes that use its types may only be loaded if it is
+	 */
+	static boolean isMatrixProjectInstalled(){
+		Jenkins j = Jenkins.getInstance();
+		return (j != null) && (j.getPlugin("matrix-project") != null);
+	}
+
+	public static String fixNull(String s){
+		return (s != null) ? s : "";
+	}
+
+	/**
+	 * Node a workspace is on, or null if it is offline or removed.
+	 */
+	public static Node workspaceNode(FilePath workspace){
+		if(workspace == null){
+			return null;
+		}
+		Computer c = workspace.toComputer();
+		return (c != null) ? c.getNode() : null;
+	}
+
+	/**
+	 * Auto-installers may need to rerun after a node reconnects
+	 */
+	@Extension
+	public static final class InstallationCacheInvalidator extends ComputerListener {
+		@Override
+		public void onOnline(Computer c, TaskListener listener){
+			installations_.remove(c.getName());
+		}
+
+		@Override
+		public void onConfigurationChange(){
+			installations_.clear();
+		}
+	}
 }
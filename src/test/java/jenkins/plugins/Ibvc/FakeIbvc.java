@@ -0,0 +1,59 @@
+package jenkins.plugins.Ibvc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import hudson.tools.ToolProperty;
+import org.apache.commons.io.FileUtils;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Stand-in IBVC executable for tests: a shell script installed as the global IBVC installation.
+ * <p>
+ * {@link #ARGS} parses the command line into shell variables before the test's script body runs:
+ * <code>op</code>, <code>rev</code> from <code>--param-rev</code>, <code>ibvc_rev</code>, <code>sfvc_rev</code>,
+ * <code>result</code> from <code>--result-file</code>, and <code>home</code>, the script's folder.
+ * Every launch appends its operation to <code>calls.log</code> in that folder.
+ */
+class FakeIbvc {
+
+	static final String ARGS =
+			"home=$(cd \"$(dirname \"$0\")\" && pwd)\n" +
+			"op=checkout; rev=; ibvc_rev=; sfvc_rev=; result=\n" +
+			"while [ $# -gt 0 ]; do\n" +
+			"  case \"$1\" in\n" +
+			"    --operation) op=\"$2\"; shift;;\n" +
+			"    --param-rev) rev=\"$2\"; shift;;\n" +
+			"    --ibvc-revision) ibvc_rev=\"$2\"; shift;;\n" +
+			"    --sfvc-revision) sfvc_rev=\"$2\"; shift;;\n" +
+			"    --result-file) result=\"$2\"; shift;;\n" +
+			"  esac\n" +
+			"  shift\n" +
+			"done\n" +
+			"echo \"$op\" >> \"$home/calls.log\"\n";
+
+	/**
+	 * Install a script as IBVC
+	 *
+	 * @param body Script after {@link #ARGS}
+	 * @return IBVC home
+	 */
+	static File install(JenkinsRule j, String body, boolean resultFile, boolean worker) throws IOException {
+		File home = new File(j.jenkins.getRootDir(), "fake-ibvc");
+		home.mkdirs();
+		File exe = new File(home, IbvcInstallation.EXECUTABLE);
+		FileUtils.writeStringToFile(exe, "#!/bin/sh\n" + ARGS + body + "\n", "UTF-8");
+		exe.setExecutable(true);
+		j.jenkins.getDescriptorByType(IbvcInstallation.DescriptorImpl.class).setInstallations(
+				new IbvcInstallation("fake", home.getPath(), "", resultFile, worker, false, Collections.<ToolProperty<?>>emptyList()));
+		return home;
+	}
+
+	/**
+	 * Operations IBVC was launched with, in order
+	 */
+	static String calls(File home) throws IOException {
+		File log = new File(home, "calls.log");
+		return log.exists() ? FileUtils.readFileToString(log, "UTF-8") : "";
+	}
+}
@@ -0,0 +1,124 @@
+package jenkins.plugins.Ibvc;
+
+import static org.junit.Assert.assertEquals;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import hudson.Functions;
+import hudson.model.Cause;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.ParametersAction;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.StringParameterDefinition;
+import hudson.model.StringParameterValue;
+import hudson.model.TaskListener;
+import hudson.model.queue.QueueTaskFuture;
+import hudson.tasks.Shell;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Concurrent builds of one job share its SCM and build wrapper, so each must keep its own best-match, see {@link IbvcBestMatchAction}.
+ * The fake IBVC holds every checkout until all builds are checking out, and reports a best-match made of the build's parameter.
+ * <p>
+ * The count of concurrent builds is the <code>jenkins.plugins.Ibvc.IbvcConcurrentBuildsTest.builds</code> system property.
+ */
+public class IbvcConcurrentBuildsTest {
+
+	private static final int BUILDS = Math.max(Integer.getInteger(IbvcConcurrentBuildsTest.class.getName() + ".builds", 10), 2);
+
+	/**
+	 * Fails the checkout if the other builds' checkouts don't overlap it within a minute
+	 */
+	private static final String BARRIER = String.format(Locale.ROOT,
+			"case \"$op\" in checkout*)\n" +
+			"  touch \"$home/started-$rev\"\n" +
+			"  i=0\n" +
+			"  while [ $(ls \"$home\" | grep -c '^started-') -lt %d ]; do\n" +
+			"    i=$((i+1)); [ $i -gt 600 ] && { echo 'checkouts did not overlap' >&2; exit 1; }\n" +
+			"    sleep 0.1\n" +
+			"  done\n" +
+			"  echo \"Checking out IBVC revision i$rev and SFVC revision s$rev\"\n" +
+			";; esac\n", BUILDS);
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	@Before
+	public void setUp() throws Exception {
+		Assume.assumeFalse(Functions.isWindows());
+		FakeIbvc.install(j, BARRIER, false, false);
+		j.jenkins.setNumExecutors(BUILDS);
+	}
+
+	@Test
+	public void scmKeepsBestMatchPerBuild() throws Exception {
+		FreeStyleProject p = project();
+		p.setScm(new IbvcSCMPlugin("", "", false, "", parameters(), null));
+		FreeStyleBuild[] builds = buildConcurrently(p);
+
+		for(int i = 0; i < builds.length; ++i){
+			String rev = Integer.toString(i + 1);
+			assertBestMatch(builds[i], rev);
+			assertEquals("i" + rev, builds[i].getEnvironment(TaskListener.NULL).get("IBVC_BEST_MATCH_IBVC_REV"));
+			assertEquals("s" + rev, builds[i].getEnvironment(TaskListener.NULL).get("IBVC_BEST_MATCH_SFVC_REV"));
+		}
+	}
+
+	@Test
+	public void buildWrapperKeepsBestMatchPerBuild() throws Exception {
+		FreeStyleProject p = project();
+		p.getBuildWrappersList().add(new IbvcBuildWrapper("", "", false, "", parameters(), null, null, 0));
+		FreeStyleBuild[] builds = buildConcurrently(p);
+
+		for(int i = 0; i < builds.length; ++i){
+			assertBestMatch(builds[i], Integer.toString(i + 1));
+		}
+	}
+
+	private FreeStyleProject project() throws Exception {
+		FreeStyleProject p = j.createFreeStyleProject();
+		p.setConcurrentBuild(true);
+		p.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("REV", "")));
+		p.getBuildersList().add(new Shell("echo \"best-match $IBVC_BEST_MATCH_IBVC_REV $IBVC_BEST_MATCH_SFVC_REV\""));
+		return p;
+	}
+
+	private static Collection<IbvcParameter> parameters(){
+		return Collections.singletonList(new IbvcParameter("rev", "${REV}"));
+	}
+
+	/**
+	 * Build with REV 1 to {@link #BUILDS} at once, and check that every build got its own best-match
+	 */
+	private FreeStyleBuild[] buildConcurrently(FreeStyleProject p) throws Exception {
+		List<QueueTaskFuture<FreeStyleBuild>> futures = new ArrayList<QueueTaskFuture<FreeStyleBuild>>();
+		for(int i = 1; i <= BUILDS; ++i){
+			futures.add(p.scheduleBuild2(0, new Cause.UserIdCause(), new ParametersAction(new StringParameterValue("REV", Integer.toString(i)))));
+		}
+		FreeStyleBuild[] builds = new FreeStyleBuild[BUILDS];
+		Set<String> revisions = new HashSet<String>();
+		for(int i = 0; i < BUILDS; ++i){
+			builds[i] = j.assertBuildStatusSuccess(futures.get(i));
+			IbvcBestMatchAction bestMatch = builds[i].getAction(IbvcBestMatchAction.class);
+			revisions.add(bestMatch.getIbvcRevision() + " " + bestMatch.getSfvcRevision());
+		}
+		assertEquals(BUILDS, revisions.size());
+		return builds;
+	}
+
+	private void assertBestMatch(FreeStyleBuild build, String rev) throws Exception {
+		IbvcBestMatchAction bestMatch = build.getAction(IbvcBestMatchAction.class);
+		assertEquals("i" + rev, bestMatch.getIbvcRevision());
+		assertEquals("s" + rev, bestMatch.getSfvcRevision());
+		j.assertLogContains("best-match i" + rev + " s" + rev, build);
+	}
+}
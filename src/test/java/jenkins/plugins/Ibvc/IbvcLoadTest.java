@@ -0,0 +1,219 @@
+package jenkins.plugins.Ibvc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Future;
+import hudson.Functions;
+import hudson.model.Cause;
+import hudson.model.CauseAction;
+import hudson.model.Computer;
+import hudson.model.FreeStyleProject;
+import hudson.model.ParametersAction;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.StringParameterDefinition;
+import hudson.model.StringParameterValue;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Load suite: many concurrent freestyle and Pipeline builds check out and check in through a fake IBVC,
+ * then the plugin's overhead per build, controller heap growth and executor occupancy are reported.
+ * <p>
+ * Sized for a quick run by default. To judge an upgrade, scale it with system properties prefixed with this class name:
+ * <code>builds</code> per job, <code>executors</code>, and the fake IBVC's <code>latencyMillis</code>, <code>outputLines</code> and <code>exitCode</code>, e.g.
+ * <pre>
+ * mvn test -Dtest=IbvcLoadTest -Djenkins.plugins.Ibvc.IbvcLoadTest.builds=300 -Djenkins.plugins.Ibvc.IbvcLoadTest.executors=100
+ * </pre>
+ */
+public class IbvcLoadTest {
+
+	private static final String PREFIX = IbvcLoadTest.class.getName() + ".";
+	private static final int BUILDS = Integer.getInteger(PREFIX + "builds", 10);
+	private static final int EXECUTORS = Integer.getInteger(PREFIX + "executors", 10);
+	private static final int LATENCY_MILLIS = Integer.getInteger(PREFIX + "latencyMillis", 100);
+	private static final int OUTPUT_LINES = Integer.getInteger(PREFIX + "outputLines", 100);
+	private static final int EXIT_CODE = Integer.getInteger(PREFIX + "exitCode", 0);
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	@Before
+	public void setUp() throws Exception {
+		Assume.assumeFalse(Functions.isWindows());
+		j.timeout = 0;
+		FakeIbvc.install(j, String.format(Locale.ROOT,
+				"sleep %.3f\n" +
+				"i=0\n" +
+				"while [ $i -lt %d ]; do echo \"IBVC $op progress $i\"; i=$((i+1)); done\n" +
+				"case \"$op\" in\n" +
+				"  checkin) echo \"Checked in IBVC revision c$rev and SFVC revision s$rev\";;\n" +
+				"  *) echo \"Checking out IBVC revision i$rev and SFVC revision s$rev\";;\n" +
+				"esac\n" +
+				"exit %d", LATENCY_MILLIS / 1000.0, OUTPUT_LINES, EXIT_CODE), false, false);
+		j.jenkins.setNumExecutors(EXECUTORS);
+	}
+
+	@Test
+	public void concurrentBuilds() throws Exception {
+		FreeStyleProject scm = freestyle("scm");
+		scm.setScm(new IbvcSCMPlugin("", "", false, "", parameters(), null));
+		scm.getPublishersList().add(checkin());
+
+		FreeStyleProject wrapper = freestyle("wrapper");
+		wrapper.getBuildWrappersList().add(new IbvcBuildWrapper("", "", false, "", parameters(), null, null, 0));
+		wrapper.getPublishersList().add(checkin());
+
+		WorkflowJob pipeline = j.jenkins.createProject(WorkflowJob.class, "pipeline");
+		pipeline.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("REV", "")));
+		pipeline.setDefinition(new CpsFlowDefinition(
+				"node {\n" +
+				"  checkout([$class: 'IbvcSCMPlugin', parameters: [[$class: 'IbvcParameter', name: 'rev', value: '${REV}']]])\n" +
+				"  step([$class: 'IbvcPostBuildSave'])\n" +
+				"}"));
+
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		System.gc();
+		long heapBefore = memory.getHeapMemoryUsage().getUsed();
+		Occupancy occupancy = new Occupancy();
+		occupancy.start();
+		long start = System.currentTimeMillis();
+
+		// A distinct parameter per build, so the queue doesn't fold them
+		List<Future<? extends Run<?,?>>> futures = new ArrayList<Future<? extends Run<?,?>>>();
+		for (int i = 1; i <= BUILDS; ++i){
+			futures.add(scm.scheduleBuild2(0, new Cause.UserIdCause(), parameter("scm" + i)));
+			futures.add(wrapper.scheduleBuild2(0, new Cause.UserIdCause(), parameter("wrapper" + i)));
+			futures.add(pipeline.scheduleBuild2(0, new CauseAction(new Cause.UserIdCause()), parameter("pipeline" + i)));
+		}
+		List<Run<?,?>> builds = new ArrayList<Run<?,?>>();
+		for (Future<? extends Run<?,?>> f : futures){
+			builds.add(f.get());
+		}
+
+		long wallMillis = System.currentTimeMillis() - start;
+		occupancy.interrupt();
+		occupancy.join();
+		System.gc();
+		long heapAfter = memory.getHeapMemoryUsage().getUsed();
+
+		long totalOverhead = 0;
+		long maxOverhead = 0;
+		for (Run<?,?> b : builds){
+			assertEquals(b.getFullDisplayName(), (EXIT_CODE == 0) ? Result.SUCCESS : Result.FAILURE, b.getResult());
+			long overhead = overheadMillis(b);
+			assertTrue(b.getFullDisplayName(), overhead >= 0);
+			totalOverhead += overhead;
+			maxOverhead = Math.max(maxOverhead, overhead);
+			if (EXIT_CODE == 0){
+				String rev = ((StringParameterValue)b.getAction(ParametersAction.class).getParameter("REV")).value;
+				IbvcBestMatchAction bestMatch = b.getAction(IbvcBestMatchAction.class);
+				assertNotNull(b.getFullDisplayName(), bestMatch);
+				assertEquals("i" + rev, bestMatch.getIbvcRevision());
+			}
+		}
+
+		System.out.println(String.format(Locale.ROOT,
+				"IBVC load: %d builds on %d executors in %d ms%n" +
+				"  plugin overhead per build: average %d ms, max %d ms%n" +
+				"  controller heap growth: %d KiB%n" +
+				"  executor occupancy: average %.0f%%, max %.0f%%",
+				builds.size(), EXECUTORS, wallMillis,
+				totalOverhead / builds.size(), maxOverhead,
+				(heapAfter - heapBefore) / 1024,
+				occupancy.average() * 100, occupancy.max_ * 100));
+	}
+
+	private FreeStyleProject freestyle(String name) throws Exception {
+		FreeStyleProject p = j.createFreeStyleProject(name);
+		p.setConcurrentBuild(true);
+		p.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("REV", "")));
+		return p;
+	}
+
+	private static Collection<IbvcParameter> parameters(){
+		return Collections.singletonList(new IbvcParameter("rev", "${REV}"));
+	}
+
+	private static IbvcPostBuildSave checkin(){
+		return new IbvcPostBuildSave("", false, false, false, false, "", null, false, false, false, 0, false, "");
+	}
+
+	private static ParametersAction parameter(String rev){
+		return new ParametersAction(new StringParameterValue("REV", rev));
+	}
+
+	/**
+	 * The plugin's own time in the build's IBVC steps, see {@link IbvcTimingAction#recordOverhead}
+	 *
+	 * @return Overhead, or -1 if none was recorded
+	 */
+	private static long overheadMillis(Run<?,?> b){
+		long millis = -1;
+		IbvcTimingAction timing = b.getAction(IbvcTimingAction.class);
+		if (timing != null){
+			for (IbvcTimingAction.Phase p : timing.getPhases()){
+				if (p.getPhase().endsWith(IbvcTimingAction.OVERHEAD)){
+					millis = Math.max(millis, 0) + p.getRunMillis();
+				}
+			}
+		}
+		return millis;
+	}
+
+	/**
+	 * Samples the share of busy executors
+	 */
+	private final class Occupancy extends Thread {
+		private double total_ = 0;
+		private int samples_ = 0;
+		volatile double max_ = 0;
+
+		Occupancy(){
+			super("IBVC load occupancy");
+		}
+
+		@Override
+		public void run(){
+			try {
+				while (true){
+					int busy = 0;
+					int executors = 0;
+					for (Computer c : j.jenkins.getComputers()){
+						busy += c.countBusy();
+						executors += c.countExecutors();
+					}
+					if (executors > 0){
+						double occupancy = (double)busy / executors;
+						synchronized (this){
+							total_ += occupancy;
+							++samples_;
+						}
+						max_ = Math.max(max_, occupancy);
+					}
+					Thread.sleep(100);
+				}
+			} catch (InterruptedException e) {
+				// Done
+			}
+		}
+
+		synchronized double average(){
+			return (samples_ > 0) ? (total_ / samples_) : 0;
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package jenkins.plugins.Ibvc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IbvcManifestTest {
+
+	private static final String SCOPE = "job#config\n{}";
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private File dir;
+	private FilePath workspace;
+
+	@Before
+	public void checkout() throws Exception {
+		dir = tmp.newFolder("ws");
+		workspace = new FilePath(dir);
+		write("same.txt", "same");
+		write("modified.txt", "old");
+		write("touched.txt", "touched");
+		write("deleted.txt", "deleted");
+		write("sub/dir/nested.txt", "nested");
+	}
+
+	@Test
+	public void noSnapshotUnlessWanted() throws Exception {
+		assertEquals(-1, IbvcManifest.snapshot(workspace, SCOPE));
+		assertNull(IbvcManifest.changedFiles(workspace, SCOPE, TaskListener.NULL));
+		assertEquals(5, IbvcManifest.snapshot(workspace, SCOPE));
+	}
+
+	@Test
+	public void discardStopsSnapshots() throws Exception {
+		IbvcManifest.changedFiles(workspace, SCOPE, TaskListener.NULL);
+		IbvcManifest.snapshot(workspace, SCOPE);
+		IbvcManifest.discard(workspace, SCOPE);
+		assertEquals(-1, IbvcManifest.snapshot(workspace, SCOPE));
+	}
+
+	@Test
+	public void diffListsAddedModifiedAndDeleted() throws Exception {
+		IbvcManifest.changedFiles(workspace, SCOPE, TaskListener.NULL);
+		assertEquals(5, IbvcManifest.snapshot(workspace, SCOPE));
+
+		write("modified.txt", "modified");
+		File touched = new File(dir, "touched.txt");
+		touched.setLastModified(touched.lastModified() - 60000);
+		new File(dir, "deleted.txt").delete();
+		write("sub/added.txt", "added");
+
+		assertEquals(Arrays.asList("A sub/added.txt", "D deleted.txt", "M modified.txt", "M touched.txt"), changed());
+	}
+
+	@Test
+	public void diffIgnoresIbvcFolder() throws Exception {
+		IbvcManifest.changedFiles(workspace, SCOPE, TaskListener.NULL);
+		IbvcManifest.snapshot(workspace, SCOPE);
+
+		write(".ibvc/result.jsonl", "{}");
+
+		assertEquals(Collections.<String>emptyList(), changed());
+	}
+
+	@Test
+	public void scopesHaveTheirOwnSnapshot() throws Exception {
+		IbvcManifest.changedFiles(workspace, SCOPE, TaskListener.NULL);
+		IbvcManifest.snapshot(workspace, SCOPE);
+
+		assertEquals(-1, IbvcManifest.snapshot(workspace, "job#other\n{}"));
+		assertNull(IbvcManifest.changedFiles(workspace, "job#other\n{}", TaskListener.NULL));
+	}
+
+	private List<String> changed() throws Exception {
+		FilePath changed = IbvcManifest.changedFiles(workspace, SCOPE, TaskListener.NULL);
+		assertNotNull(changed);
+		List<String> lines = FileUtils.readLines(new File(changed.getRemote()), "UTF-8");
+		Collections.sort(lines);
+		return lines;
+	}
+
+	private void write(String path, String content) throws Exception {
+		FileUtils.writeStringToFile(new File(dir, path), content, "UTF-8");
+	}
+}
@@ -0,0 +1,30 @@
+package jenkins.plugins.Ibvc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import hudson.model.Items;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class IbvcMatrixCheckinTest {
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	@Test
+	public void aggregatingPublisherIsSavedPlain() throws Exception {
+		IbvcPostBuildSave p = IbvcMatrixCheckin.aggregating(new IbvcPostBuildSave("ibvc.config", false, false, false, false, "", null
+				, false, false, true, 2, false, ""));
+		String xml = Items.XSTREAM2.toXML(p);
+		assertTrue(xml, xml.contains("resolves-to=\"" + IbvcPostBuildSave.class.getName() + "\""));
+
+		// Loads without the aggregating class, as when matrix-project is removed
+		assertTrue(xml, xml.contains("IbvcMatrixCheckin_-Aggregating"));
+		String plain = xml.replace("IbvcMatrixCheckin_-Aggregating", "Missing");
+		Object loaded = Items.XSTREAM2.fromXML(plain);
+		assertEquals(IbvcMatrixCheckin.Aggregating.class, loaded.getClass());
+		assertEquals("ibvc.config", ((IbvcPostBuildSave)loaded).getIbvcConfig());
+		assertEquals(2, ((IbvcPostBuildSave)loaded).getUploadParallelism());
+	}
+}
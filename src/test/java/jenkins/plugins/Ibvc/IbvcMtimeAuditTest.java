@@ -0,0 +1,49 @@
+package jenkins.plugins.Ibvc;
+
+import static org.junit.Assert.assertEquals;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class IbvcMtimeAuditTest {
+
+	@Test
+	public void parsesTargetsAndSources(){
+		List<IbvcMtimeAudit.Rule> rules = IbvcMtimeAudit.Rule.parse("main.o main.d: main.c main.h\n");
+		assertEquals(1, rules.size());
+		assertEquals(Arrays.asList("main.o", "main.d"), rules.get(0).targets_);
+		assertEquals(Arrays.asList("main.c", "main.h"), rules.get(0).sources_);
+	}
+
+	@Test
+	public void joinsContinuationLines(){
+		List<IbvcMtimeAudit.Rule> rules = IbvcMtimeAudit.Rule.parse("main.o: main.c \\\n  a.h \\\r\n  b.h\nother.o: other.c\n");
+		assertEquals(2, rules.size());
+		assertEquals(Arrays.asList("main.c", "a.h", "b.h"), rules.get(0).sources_);
+		assertEquals(Arrays.asList("other.o"), rules.get(1).targets_);
+		assertEquals(Arrays.asList("other.c"), rules.get(1).sources_);
+	}
+
+	@Test
+	public void unescapesSpacesAndDollars(){
+		List<IbvcMtimeAudit.Rule> rules = IbvcMtimeAudit.Rule.parse("out/my\\ file.o: src/my\\ file.c src/$$version.h\n");
+		assertEquals(Arrays.asList("out/my file.o"), rules.get(0).targets_);
+		assertEquals(Arrays.asList("src/my file.c", "src/$version.h"), rules.get(0).sources_);
+	}
+
+	@Test
+	public void keepsDriveLetters(){
+		List<IbvcMtimeAudit.Rule> rules = IbvcMtimeAudit.Rule.parse("C:\\build\\main.obj: C:\\src\\main.c D:/include/a.h\r\n");
+		assertEquals(1, rules.size());
+		assertEquals(Arrays.asList("C:\\build\\main.obj"), rules.get(0).targets_);
+		assertEquals(Arrays.asList("C:\\src\\main.c", "D:/include/a.h"), rules.get(0).sources_);
+	}
+
+	@Test
+	public void skipsRulesWithoutSources(){
+		// Phony targets written by -MP, and lines that aren't rules
+		List<IbvcMtimeAudit.Rule> rules = IbvcMtimeAudit.Rule.parse("main.o: main.c main.h\n\nmain.h:\n# comment\n");
+		assertEquals(1, rules.size());
+		assertEquals(Arrays.asList("main.o"), rules.get(0).targets_);
+	}
+}
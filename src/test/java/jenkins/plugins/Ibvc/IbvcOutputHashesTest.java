@@ -0,0 +1,99 @@
+package jenkins.plugins.Ibvc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import java.io.File;
+import java.util.Arrays;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IbvcOutputHashesTest {
+
+	private static final String SCOPE = "job#config\n{}";
+	private static final String INCLUDES = "bin/**";
+	private static final IbvcRevisionState CHECKED_OUT = new IbvcRevisionState("7", "100");
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private File dir;
+	private FilePath workspace;
+
+	@Before
+	public void checkout() throws Exception {
+		dir = tmp.newFolder("ws");
+		workspace = new FilePath(dir);
+		FileUtils.writeStringToFile(new File(dir, "bin/small.dll"), "small");
+		// Larger than the read buffer, so it is hashed in several reads
+		FileUtils.writeByteArrayToFile(new File(dir, "bin/large.dll"), new byte[1024 * 1024 + 17]);
+		FileUtils.writeStringToFile(new File(dir, "src/main.c"), "main");
+	}
+
+	@Test
+	public void noHashesUnlessWanted() throws Exception {
+		assertEquals(-1, IbvcOutputHashes.record(workspace, SCOPE, CHECKED_OUT, "100"));
+		assertNull(IbvcOutputHashes.unchanged(workspace, SCOPE, INCLUDES, TaskListener.NULL));
+		assertEquals(2, IbvcOutputHashes.record(workspace, SCOPE, CHECKED_OUT, "100"));
+	}
+
+	@Test
+	public void identicalOutputsAreUnchanged() throws Exception {
+		IbvcOutputHashes.unchanged(workspace, SCOPE, INCLUDES, TaskListener.NULL);
+		IbvcOutputHashes.record(workspace, SCOPE, CHECKED_OUT, "100");
+
+		// Untracked files don't matter
+		FileUtils.writeStringToFile(new File(dir, "src/main.c"), "changed");
+		IbvcRevisionState unchanged = IbvcOutputHashes.unchanged(workspace, SCOPE, INCLUDES, TaskListener.NULL);
+		assertNotNull(unchanged);
+		assertEquals("7", unchanged.getIbvcRevision());
+		assertEquals("100", unchanged.getSfvcRevision());
+	}
+
+	@Test
+	public void sameSizeChangeIsDetected() throws Exception {
+		IbvcOutputHashes.unchanged(workspace, SCOPE, INCLUDES, TaskListener.NULL);
+		IbvcOutputHashes.record(workspace, SCOPE, CHECKED_OUT, "100");
+
+		byte[] content = new byte[1024 * 1024 + 17];
+		Arrays.fill(content, 1024 * 1024, content.length, (byte)1);
+		FileUtils.writeByteArrayToFile(new File(dir, "bin/large.dll"), content);
+		assertNull(IbvcOutputHashes.unchanged(workspace, SCOPE, INCLUDES, TaskListener.NULL));
+	}
+
+	@Test
+	public void otherIncludesAskForNewHashes() throws Exception {
+		IbvcOutputHashes.unchanged(workspace, SCOPE, INCLUDES, TaskListener.NULL);
+		IbvcOutputHashes.record(workspace, SCOPE, CHECKED_OUT, "100");
+
+		assertNull(IbvcOutputHashes.unchanged(workspace, SCOPE, "bin/*.dll", TaskListener.NULL));
+		assertEquals(2, IbvcOutputHashes.record(workspace, SCOPE, CHECKED_OUT, "100"));
+		assertNotNull(IbvcOutputHashes.unchanged(workspace, SCOPE, "bin/*.dll", TaskListener.NULL));
+	}
+
+	@Test
+	public void emptyIncludesHashNothing() throws Exception {
+		IbvcOutputHashes.unchanged(workspace, SCOPE, "", TaskListener.NULL);
+		assertEquals(-1, IbvcOutputHashes.record(workspace, SCOPE, CHECKED_OUT, "100"));
+	}
+
+	@Test
+	public void noMatchingOutputsAreNotUnchanged() throws Exception {
+		IbvcOutputHashes.unchanged(workspace, SCOPE, "out/**", TaskListener.NULL);
+		assertEquals(0, IbvcOutputHashes.record(workspace, SCOPE, CHECKED_OUT, "100"));
+		assertNull(IbvcOutputHashes.unchanged(workspace, SCOPE, "out/**", TaskListener.NULL));
+	}
+
+	@Test
+	public void discardStopsHashing() throws Exception {
+		IbvcOutputHashes.unchanged(workspace, SCOPE, INCLUDES, TaskListener.NULL);
+		IbvcOutputHashes.record(workspace, SCOPE, CHECKED_OUT, "100");
+		IbvcOutputHashes.discard(workspace, SCOPE);
+		assertEquals(-1, IbvcOutputHashes.record(workspace, SCOPE, CHECKED_OUT, "100"));
+	}
+}
@@ -0,0 +1,83 @@
+package jenkins.plugins.Ibvc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import hudson.Functions;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Revisions come from the {@link IbvcResultFile} when IBVC wrote a revision record to it, otherwise from the best-match line of its output.
+ */
+public class IbvcResultFileTest {
+
+	private static final String OUTPUT = "echo \"Checking out IBVC revision fromOutput and SFVC revision s2\"\n";
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	@Before
+	public void unixOnly(){
+		Assume.assumeFalse(Functions.isWindows());
+	}
+
+	@Test
+	public void resultFileWinsOverOutput() throws Exception {
+		FakeIbvc.install(j,
+				"echo '{\"type\":\"revision\",\"ibvcRevision\":\"fromFile\",\"sfvcRevision\":\"s1\"}' > \"$result\"\n" +
+				"echo '{\"type\":\"transfer\",\"files\":120,\"bytes\":1048576}' >> \"$result\"\n" +
+				"echo '{\"type\":\"phase\",\"name\":\"search\",\"millis\":350}' >> \"$result\"\n" +
+				OUTPUT, true, false);
+		FreeStyleBuild b = build();
+
+		assertRevisions(b, "fromFile", "s1");
+		IbvcTimingAction.Phase phase = b.getAction(IbvcTimingAction.class).getPhases().get(0);
+		assertEquals(Long.valueOf(120), phase.getFiles());
+		assertEquals(Long.valueOf(1048576), phase.getTransferredBytes());
+		assertEquals(Long.valueOf(350), phase.getDurations().get("search"));
+	}
+
+	@Test
+	public void malformedResultFileFallsBackToOutput() throws Exception {
+		FakeIbvc.install(j,
+				"echo 'not json' > \"$result\"\n" +
+				"echo '{\"type\":\"revision\",\"ibvcRevision\":' >> \"$result\"\n" +
+				"echo '{\"type\":\"unknown\"}' >> \"$result\"\n" +
+				OUTPUT, true, false);
+		FreeStyleBuild b = build();
+
+		assertRevisions(b, "fromOutput", "s2");
+		assertNull(b.getAction(IbvcTimingAction.class).getPhases().get(0).getFiles());
+	}
+
+	@Test
+	public void missingResultFileFallsBackToOutput() throws Exception {
+		FakeIbvc.install(j, "rm -f \"$result\"\n" + OUTPUT, true, false);
+		assertRevisions(build(), "fromOutput", "s2");
+	}
+
+	@Test
+	public void revisionRecordWithoutSfvcFallsBackToOutput() throws Exception {
+		FakeIbvc.install(j,
+				"echo '{\"type\":\"revision\",\"ibvcRevision\":\"fromFile\"}' > \"$result\"\n" +
+				OUTPUT, true, false);
+		assertRevisions(build(), "fromOutput", "s2");
+	}
+
+	private FreeStyleBuild build() throws Exception {
+		FreeStyleProject p = j.createFreeStyleProject();
+		p.setScm(new IbvcSCMPlugin("", "", false, "", null, null));
+		return j.buildAndAssertSuccess(p);
+	}
+
+	private static void assertRevisions(FreeStyleBuild b, String ibvcRevision, String sfvcRevision){
+		IbvcBestMatchAction bestMatch = b.getAction(IbvcBestMatchAction.class);
+		assertEquals(ibvcRevision, bestMatch.getIbvcRevision());
+		assertEquals(sfvcRevision, bestMatch.getSfvcRevision());
+	}
+}
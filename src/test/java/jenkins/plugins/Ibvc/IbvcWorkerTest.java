@@ -0,0 +1,168 @@
+package jenkins.plugins.Ibvc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import hudson.EnvVars;
+import hudson.Functions;
+import hudson.Launcher;
+import hudson.model.TaskListener;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * {@link IbvcWorker} against a stand-in worker that serves requests the way IBVC does with <code>--operation serve</code>.
+ * The worker reports its process id as IBVC revision, so reuse shows in the output.
+ */
+public class IbvcWorkerTest {
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	private File home;
+
+	@Before
+	public void unixOnly(){
+		Assume.assumeFalse(Functions.isWindows());
+	}
+
+	@Test
+	public void workerIsReused() throws Exception {
+		install("echo \"Checking out IBVC revision $$ and SFVC revision s1\"");
+
+		String first = launch(j.jenkins.createLauncher(TaskListener.NULL), 0);
+		String second = launch(j.jenkins.createLauncher(TaskListener.NULL), 0);
+
+		assertEquals(first, second);
+		assertEquals(1, count("serve"));
+		assertEquals(2, count("request"));
+	}
+
+	@Test
+	public void workerDiesDuringOperation() throws Exception {
+		install("if [ ! -f \"$home/died\" ]; then touch \"$home/died\"; echo partial; exit 3; fi\n" +
+				"    echo \"Checking out IBVC revision $$ and SFVC revision s1\"");
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ByteArrayOutputStream err = new ByteArrayOutputStream();
+		int exitCode = IbvcWorker.launch(installation(), j.jenkins.createLauncher(TaskListener.NULL), args(), out, err);
+
+		assertEquals(-1, exitCode);
+		assertTrue(out.toString().contains("partial"));
+		assertTrue(err.toString().contains(Messages.IBVC_worker_died()));
+
+		// A new worker takes the next operation
+		launch(j.jenkins.createLauncher(TaskListener.NULL), 0);
+		assertEquals(2, count("serve"));
+	}
+
+	@Test
+	public void interruptStopsWorker() throws Exception {
+		install("touch \"$home/running\"; sleep 60");
+
+		final AtomicReference<Throwable> thrown = new AtomicReference<Throwable>();
+		Thread t = new Thread("IBVC operation"){
+			@Override
+			public void run(){
+				try {
+					IbvcWorker.launch(installation(), j.jenkins.createLauncher(TaskListener.NULL), args(), new ByteArrayOutputStream(), new ByteArrayOutputStream());
+				} catch (Throwable e) {
+					thrown.set(e);
+				}
+			}
+		};
+		t.start();
+		File running = new File(home, "running");
+		for (int i = 0; !running.exists(); ++i){
+			if (i > 300){
+				fail("Worker didn't start the operation");
+			}
+			Thread.sleep(100);
+		}
+
+		t.interrupt();
+		t.join(10000);
+		assertFalse(t.isAlive());
+		assertTrue(String.valueOf(thrown.get()), thrown.get() instanceof InterruptedException);
+
+		String pid = FileUtils.readFileToString(new File(home, "worker.pid"), "UTF-8").trim();
+		for (int i = 0; isRunning(pid); ++i){
+			if (i > 100){
+				fail("Worker wasn't stopped");
+			}
+			Thread.sleep(100);
+		}
+	}
+
+	@Test
+	public void decoratedLauncherStartsIbvc() throws Exception {
+		install("echo \"Checking out IBVC revision $$ and SFVC revision s1\"");
+
+		Launcher decorated = j.jenkins.createLauncher(TaskListener.NULL).decorateByEnv(new EnvVars("IBVC_TEST", "1"));
+		launch(decorated, 0);
+
+		assertEquals(0, count("serve"));
+		assertEquals(1, count("checkout-best-match"));
+	}
+
+	/**
+	 * Install a worker that runs the body for each request
+	 */
+	private void install(String body) throws Exception {
+		home = FakeIbvc.install(j,
+				"if [ \"$op\" = serve ]; then\n" +
+				"  echo $$ > \"$home/worker.pid\"\n" +
+				"  while IFS= read -r request; do\n" +
+				"    echo request >> \"$home/calls.log\"\n" +
+				"    " + body + "\n" +
+				"    echo \"IBVC-EXIT 0\"\n" +
+				"  done\n" +
+				"  exit 0\n" +
+				"fi\n" +
+				"echo \"Checking out IBVC revision one-shot and SFVC revision s1\"\n", false, true);
+	}
+
+	private IbvcInstallation installation(){
+		return j.jenkins.getDescriptorByType(IbvcInstallation.DescriptorImpl.class).getInstallations()[0];
+	}
+
+	private List<String> args(){
+		return Arrays.asList(new File(home, IbvcInstallation.EXECUTABLE).getPath(), "--operation", "checkout-best-match");
+	}
+
+	/**
+	 * @return IBVC revision of the best-match line
+	 */
+	private String launch(Launcher launcher, int expectedExitCode) throws Exception {
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		BestMatchOutputStream out = new BestMatchOutputStream(log);
+		assertEquals(expectedExitCode, IbvcWorker.launch(installation(), launcher, args(), out, log));
+		out.close();
+		return out.getIbvcRevision();
+	}
+
+	private int count(String call) throws Exception {
+		int count = 0;
+		for (String line : StringUtils.split(FakeIbvc.calls(home), '\n')){
+			if (line.equals(call)){
+				++count;
+			}
+		}
+		return count;
+	}
+
+	private static boolean isRunning(String pid) throws Exception {
+		return new ProcessBuilder("kill", "-0", pid).start().waitFor() == 0;
+	}
+}